@@ -9,6 +9,13 @@ const path = '/socket';
 const ssl = document.location.protocol == 'https:';
 const protocol = ssl ? 'wss' : 'ws';
 const webSocketUrl = protocol + '://' + host + ':' + port + path;
+const room = new URLSearchParams(window.location.search).get('room') || 'default';
+// Candidates gathered within this many milliseconds are sent as one message, 0 sends them one by one
+const candidateBatchWindow = 15;
+// Reconnecting waits longer after every failed attempt, up to the maximum (milliseconds)
+const reconnectDelayMin = 500;
+const reconnectDelayMax = 10000;
+let reconnectDelay = 0;
 
 /**
  * Peer connection configuration
@@ -30,6 +37,14 @@ const remoteVideo = document.querySelector('#remoteVideo');
 remoteVideo.addEventListener('loadedmetadata', function() {
     console.log(`Remote video videoWidth: ${this.videoWidth}px,  videoHeight: ${this.videoHeight}px`);
 });
+// Time from joining until the first frame is shown (milliseconds), logged once per connection
+let joinedAt = null;
+remoteVideo.addEventListener('playing', function() {
+    if (joinedAt != null) {
+        console.log(`Time to first frame: ${Math.round(performance.now() - joinedAt)}ms`);
+        joinedAt = null;
+    }
+});
 
 /**
  * Initialize the web socket, peer connection and media stream
@@ -64,6 +79,10 @@ function init() {
 
 function wsOnOpen(event) {
     console.log('Socket is open!');
+    joinedAt = performance.now();
+    // Tell the server who we are, so it only sends us what is meant for us
+    // and that we understand batches of ICE candidates
+    webSocket.send(JSON.stringify({ type: 'join', role: 'viewer', room: room, batching: true }));
 }
 
 function wsOnMessage(event) {
@@ -86,10 +105,18 @@ function wsOnMessage(event) {
             message.sdp = message.description;
             delete message.description;
         }
+        // The server let us in, the next reconnect does not have to wait long
+        reconnectDelay = 0;
         onOfferReceived(message);
         return;
     }
 
+    // Batch of remote ICE candidates received?
+    if (message.type == 'candidates') {
+        message.candidates?.forEach(candidate => onRemoteIceCandidateReceived(candidate));
+        return;
+    }
+
     // Remote ICE candidate received?
     if (message.sdp) {
         const regex = /^candidate:/;
@@ -118,8 +145,10 @@ function wsOnClose(event) {
     remoteStream = null;
     console.log('Peer connection closed');
 
-    console.log('Trying to reconnect...');
-    init();
+    // Back off, the server may have turned us away because it is busy
+    reconnectDelay = Math.min(Math.max(reconnectDelay * 2, reconnectDelayMin), reconnectDelayMax);
+    console.log(`Trying to reconnect in ${reconnectDelay}ms...`);
+    setTimeout(init, reconnectDelay);
 }
 
 /**
@@ -210,9 +239,47 @@ function onSendAnswerFailed(error) {
  * ICE candidate functions
  */
 
+let pendingCandidates = [];
+let candidateBatchTimer = null;
+
 function onLocalIceCandidateReceived(event) {
     console.log("New ICE candidate: ", event.candidate)
-    sendIceCandidate(event.candidate);
+    if (candidateBatchWindow <= 0) {
+        sendIceCandidate(event.candidate);
+        return;
+    }
+
+    // Gathering is done, don't wait for the window to end
+    if (!event.candidate) {
+        sendIceCandidates();
+        return;
+    }
+
+    pendingCandidates.push({
+        sdpMid: event.candidate.sdpMid,
+        sdpMLineIndex: event.candidate.sdpMLineIndex,
+        sdp: event.candidate.candidate
+    });
+    if (!candidateBatchTimer) {
+        candidateBatchTimer = setTimeout(sendIceCandidates, candidateBatchWindow);
+    }
+}
+
+function sendIceCandidates() {
+    clearTimeout(candidateBatchTimer);
+    candidateBatchTimer = null;
+    if (pendingCandidates.length == 0) {
+        return;
+    }
+
+    console.log("Sending " + pendingCandidates.length + " ICE candidates...")
+    try {
+        webSocket.send(JSON.stringify({ type: 'candidates', candidates: pendingCandidates }));
+        onSendIceCandidateSuccess();
+    } catch (error) {
+        onSendIceCandidateFailed(error);
+    }
+    pendingCandidates = [];
 }
 
 function sendIceCandidate(candidate) {
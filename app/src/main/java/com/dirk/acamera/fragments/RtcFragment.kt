@@ -21,11 +21,21 @@ import com.dirk.acamera.rtc.RtcClient
 import com.dirk.acamera.rtc.SimpleSdpObserver
 import com.dirk.acamera.signaling.SignalingClient
 import com.dirk.acamera.signaling.SignalingClientListener
+import com.dirk.acamera.signaling.SignalingEngine
+import com.dirk.acamera.signaling.SignalingRole
+import com.dirk.acamera.signaling.SignalingRouting
 import com.dirk.acamera.signaling.SignalingServer
 import com.dirk.acamera.signaling.SignalingServerListener
+import com.dirk.acamera.utils.StartupTimer
 import com.dirk.acamera.utils.buildBulletList
 import com.dirk.acamera.utils.getDeviceIp
-import kotlinx.coroutines.ObsoleteCoroutinesApi
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.Deferred
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.isActive
+import kotlinx.coroutines.launch
 import org.webrtc.IceCandidate
 import org.webrtc.PeerConnection
 import org.webrtc.SessionDescription
@@ -33,8 +43,13 @@ import org.webrtc.SurfaceViewRenderer
 
 
 private const val TAG = "aCamera RtcFragment"
+private const val BITRATE_SAMPLE_PERIOD_MILLIS = 2000L
+private const val CANDIDATE_BATCH_WINDOW_MILLIS = 15L
+private const val PHASE_WEBRTC = "webrtc"
+private const val PHASE_CAMERAS = "cameras"
+// Only Netty serves TLS, see SignalingEngine
+private val SERVER_ENGINE = SignalingEngine.NETTY
 
-@ObsoleteCoroutinesApi
 class RtcFragment : Fragment() {
 
     // Views
@@ -51,7 +66,6 @@ class RtcFragment : Fragment() {
     // Networking
     private lateinit var signalingClient: SignalingClient
     private lateinit var signalingServer: SignalingServer
-    private lateinit var sdpObserver: SimpleSdpObserver
     private lateinit var rtcClient: RtcClient
 
     // Other
@@ -60,6 +74,10 @@ class RtcFragment : Fragment() {
     private lateinit var deviceIp: String
     private lateinit var streamUrl: String
     private lateinit var howToConnectList: SpannableStringBuilder
+    private lateinit var startupTimer: StartupTimer
+    private lateinit var serverStarted: CompletableDeferred<Boolean>
+    // True once the server runs and WebRTC and the cameras are set up, false if the server failed
+    private lateinit var ready: Deferred<Boolean>
 
     /**
      * Fragment LifeCycle
@@ -81,21 +99,67 @@ class RtcFragment : Fragment() {
 
         // Get values from settings
         deviceIp = getDeviceIp(requireContext())
-        streamUrl = "https://$deviceIp:$port"
+        streamUrl = "${SERVER_ENGINE.scheme}://$deviceIp:$port"
         howToConnectList = SpannableStringBuilder(buildBulletList(resources.getStringArray(R.array.how_to_connect), 40))
 
         // Show status
         showStatusBox(getString(R.string.status_initializing))
 
+        // Startup is only done once the server, WebRTC and the cameras are
+        startupTimer = StartupTimer(SignalingServer.STARTUP_PHASES + setOf(PHASE_WEBRTC, PHASE_CAMERAS))
+        serverStarted = CompletableDeferred()
+
         // Initialize networking services
-        signalingServer = SignalingServer(createSignalingServerListener(), requireContext(), port)
-        signalingClient = SignalingClient(createSignalingClientListener())
-        sdpObserver = createSdpObserver()
-        rtcClient = RtcClient(requireActivity().application, createPeerConnectionObserver())
+        // Creating them is cheap, the expensive parts run concurrently below
+        signalingServer = SignalingServer(
+            createSignalingServerListener(),
+            requireContext(),
+            port,
+            engine = SERVER_ENGINE,
+            startupTimer = startupTimer
+        )
+        signalingClient = SignalingClient(
+            createSignalingClientListener(),
+            candidateBatchWindowMillis = CANDIDATE_BATCH_WINDOW_MILLIS
+        )
+        rtcClient = RtcClient(requireActivity().application, ::createPeerConnectionObserver)
         rtcClient.initSurfaceView(localView)
 
-        // Start the server
+        // Start the server (loads keystore and web client, binds the port)
         signalingServer.start()
+
+        // Prepare WebRTC and the cameras meanwhile
+        lifecycleScope.launch(Dispatchers.Default) {
+            startupTimer.measure(PHASE_WEBRTC) { rtcClient.initialize() }
+        }
+        lifecycleScope.launch(Dispatchers.Default) {
+            startupTimer.measure(PHASE_CAMERAS) { rtcClient.enumerateCameras() }
+        }
+
+        ready = lifecycleScope.async {
+            val isServerRunning = serverStarted.await()
+            startupTimer.awaitPhases()
+            isServerRunning
+        }
+
+        // The local client only connects once everything it uses is ready
+        lifecycleScope.launch {
+            if (ready.await()) {
+                Log.d(TAG, "Ready, startup phases:\n${startupTimer.report()}")
+                // The local client joins the server in memory, only remote clients use the web socket
+                signalingClient.connectLocal(signalingServer)
+            } else {
+                Log.w(TAG, "Startup failed, startup phases:\n${startupTimer.report()}")
+            }
+        }
+
+        // Keep the outbound bitrate metric up to date
+        lifecycleScope.launch {
+            while (isActive) {
+                delay(BITRATE_SAMPLE_PERIOD_MILLIS)
+                rtcClient.sampleOutboundBitrate()
+            }
+        }
     }
 
     override fun onResume() {
@@ -449,17 +513,31 @@ class RtcFragment : Fragment() {
      * Peer Connection Observer
      */
 
-    private fun createPeerConnectionObserver() = object : PeerConnectionObserver() {
+    // The standby connection changes its owner when a viewer claims it, the owner is looked up on every event
+    private fun createPeerConnectionObserver(owner: RtcClient.Owner) = object : PeerConnectionObserver() {
         override fun onIceCandidate(p0: IceCandidate?) {
             super.onIceCandidate(p0)
-            signalingClient.send(p0)
-            rtcClient.addIceCandidate(p0)
+            // The standby offer is only sent once gathering is complete, with the candidates in it
+            if (owner.isStandby) return
+            val viewerId = owner.viewerId
+            p0?.let { signalingClient.sendIceCandidate(it, to = viewerId) }
+            rtcClient.addIceCandidate(viewerId, p0)
+        }
+
+        override fun onIceGatheringChange(p0: PeerConnection.IceGatheringState?) {
+            super.onIceGatheringChange(p0)
+            if (!owner.isStandby || p0 != PeerConnection.IceGatheringState.COMPLETE) return
+            rtcClient.getStandbyOffer()?.let {
+                Log.d(TAG, "Standby offer is ready")
+                signalingClient.send(it, to = SignalingRouting.TARGET_STANDBY)
+            }
         }
 
         override fun onConnectionChange(newState: PeerConnection.PeerConnectionState?) {
             super.onConnectionChange(newState)
-            Log.d(TAG, "New connection state: $newState")
+            Log.d(TAG, "New connection state of viewer ${owner.viewerId}: $newState")
             if (newState == PeerConnection.PeerConnectionState.CONNECTED) {
+                rtcClient.onViewerConnected(owner)
                 // Launch in main thread so we can edit views
                 lifecycleScope.launchWhenStarted { hideStatusBox() }
             }
@@ -468,6 +546,10 @@ class RtcFragment : Fragment() {
         override fun onSignalingChange(p0: PeerConnection.SignalingState?) {
             super.onSignalingChange(p0)
             Log.d(TAG, "New signaling state: $p0")
+            // The viewer answered, it gets a new offer if the stream changed meanwhile
+            if (p0 == PeerConnection.SignalingState.STABLE && !owner.isStandby && rtcClient.onNegotiationDone(owner.viewerId)) {
+                sendOffer(owner.viewerId)
+            }
         }
 
         override fun onIceConnectionChange(p0: PeerConnection.IceConnectionState?) {
@@ -480,10 +562,10 @@ class RtcFragment : Fragment() {
      * SDP Observer
      */
 
-    private fun createSdpObserver() = object : SimpleSdpObserver() {
+    private fun createSdpObserver(viewerId: String) = object : SimpleSdpObserver() {
         override fun onCreateSuccess(p0: SessionDescription?) {
             super.onCreateSuccess(p0)
-            signalingClient.send(p0)
+            signalingClient.send(p0, to = viewerId)
         }
     }
 
@@ -493,38 +575,44 @@ class RtcFragment : Fragment() {
 
     private fun createSignalingServerListener() = object : SignalingServerListener {
         override fun onServerRunning() {
-            signalingClient.connect(
-                port = port,
-                path = SignalingServer.SOCKET_PATH,
-                waitMillis = 0
-            )
+            Log.d(TAG, "Server is running")
+            serverStarted.complete(true)
         }
 
         override fun onServerFailed() {
+            serverStarted.complete(false)
             lifecycleScope.launchWhenStarted {
                 showStatusBox(getString(R.string.status_server_failed))
             }
         }
 
-        override fun onConnectionEstablished() {
-            // TODO: The client should tell which type it is (1/2)
-            // Check if local client was already connected
-            if (signalingClient.state == SignalingClient.State.CONNECTION_ESTABLISHED) {
-                Log.d(TAG, "Remote client connected")
-                sendOffer()
-            } else {
+        override fun onConnectionEstablished(id: String, role: SignalingRole) {
+            if (role == SignalingRole.CAMERA) {
                 // Launch in main thread so we can edit views
                 lifecycleScope.launchWhenStarted {
                     showStatusBox(getString(R.string.status_waiting), howToConnectList, streamUrl)
                 }
+            } else if (signalingClient.state == SignalingClient.State.CONNECTION_ESTABLISHED) {
+                // The local client was already connected
+                Log.d(TAG, "Remote client $id connected")
+                addViewer(id)
             }
         }
 
-        override fun onConnectionAborted() {
-            // TODO: The client should tell which type it is (2/2)
-            // Check if local client is still connected
-            if (signalingClient.state != SignalingClient.State.CONNECTION_ABORTED) {
-                Log.d(TAG,"Remote client disconnected")
+        override fun onStandbyClaimed(id: String): Boolean {
+            if (!rtcClient.claimStandby(id)) return false
+            Log.d(TAG, "Remote client $id got the standby offer")
+            // Have an offer ready for the next one, the connection is created in the background
+            rtcClient.prepareStandby()
+            return true
+        }
+
+        override fun onConnectionAborted(id: String, role: SignalingRole) {
+            if (role != SignalingRole.VIEWER) return
+            Log.d(TAG,"Remote client $id disconnected")
+            rtcClient.removeViewer(id)
+            // Check if local client is still connected and nobody is watching anymore
+            if (signalingClient.state != SignalingClient.State.CONNECTION_ABORTED && rtcClient.viewerIds.isEmpty()) {
                 // Launch in main thread so we can edit views
                 lifecycleScope.launchWhenStarted {
                     showStatusBox(getString(R.string.status_waiting), howToConnectList, streamUrl)
@@ -540,10 +628,11 @@ class RtcFragment : Fragment() {
     private fun createSignalingClientListener() = object : SignalingClientListener {
 
         override fun onConnectionEstablished() {
-            if (signalingServer.connections >= 2) {
-                Log.d(TAG, "Remote client is already connected")
-                sendOffer()
+            signalingServer.getViewerIds().forEach {
+                Log.d(TAG, "Remote client $it is already connected")
+                addViewer(it)
             }
+            rtcClient.prepareStandby()
         }
 
         override fun onConnectionFailed() {
@@ -567,22 +656,42 @@ class RtcFragment : Fragment() {
             }
         }
 
-        override fun onOfferReceived(description: SessionDescription) {
+        override fun onOfferReceived(from: String?, description: SessionDescription) {
             Log.e(TAG, "Received 'OFFER' ... this should not happen!")
         }
 
-        override fun onAnswerReceived(description: SessionDescription) {
-            rtcClient.onRemoteSessionReceived(description)
+        override fun onAnswerReceived(from: String?, description: SessionDescription) {
+            from?.let { rtcClient.onRemoteSessionReceived(it, description) }
         }
 
-        override fun onIceCandidateReceived(iceCandidate: IceCandidate) {
-            rtcClient.addIceCandidate(iceCandidate)
+        override fun onIceCandidateReceived(from: String?, iceCandidate: IceCandidate) {
+            from?.let { rtcClient.addIceCandidate(it, iceCandidate) }
         }
     }
 
-    private fun sendOffer() {
-        Log.d(TAG, "Sending 'OFFER'...")
-        rtcClient.offer(sdpObserver)
+    private fun addViewer(viewerId: String) {
+        if (rtcClient.addViewer(viewerId)) {
+            sendOffer(viewerId)
+        }
+    }
+
+    private fun sendOffer(viewerId: String) {
+        Log.d(TAG, "Sending 'OFFER' to viewer $viewerId...")
+        rtcClient.offer(viewerId, createSdpObserver(viewerId))
+    }
+
+    /**
+     * The stream got a new track, offers made before don't have it
+     */
+    private fun onStreamChanged() {
+        rtcClient.getViewersToRenegotiate().forEach {
+            Log.d(TAG, "Renegotiating with viewer $it, the stream changed")
+            sendOffer(it)
+        }
+        if (rtcClient.refreshStandby()) {
+            Log.d(TAG, "Withdrawing standby offer, the stream changed")
+            signalingClient.withdrawStandby()
+        }
     }
 
     /**
@@ -597,7 +706,7 @@ class RtcFragment : Fragment() {
 
     private fun enableVideo() {
         Log.d(TAG, "Enabling video...")
-        rtcClient.enableVideo(localView)
+        if (rtcClient.enableVideo(localView)) onStreamChanged()
         isVideoEnabled = true
         Log.d(TAG, "Enabling video done")
         updateUi()
@@ -613,7 +722,7 @@ class RtcFragment : Fragment() {
 
     private fun enableAudio() {
         Log.d(TAG, "Enabling audio...")
-        rtcClient.enableAudio()
+        if (rtcClient.enableAudio()) onStreamChanged()
         isAudioEnabled = true
         updateUi()
         Log.d(TAG, "Enabling audio done")
@@ -4,15 +4,21 @@ import android.app.Application
 import android.content.Context
 import android.hardware.camera2.CameraManager
 import android.util.Log
+import com.dirk.acamera.utils.EventLog
+import com.dirk.acamera.utils.Metrics
 import com.dirk.acamera.utils.Ratio
 import com.dirk.acamera.utils.reduceRatio
 import org.webrtc.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.RejectedExecutionException
 
 private const val TAG = "aCamera RtcClient"
 
 class RtcClient(
-    context: Application,
-    observer: PeerConnection.Observer
+    private val context: Application,
+    private val observerFactory: (owner: Owner) -> PeerConnection.Observer,
+    private val maxViewers: Int = MAX_VIEWERS_DEFAULT
 ) {
     enum class Camera {
         NONE,
@@ -24,15 +30,49 @@ class RtcClient(
         private const val VIDEO_ID = "acamera_video"
         private const val AUDIO_ID = "acamera_audio"
         private const val STREAM_ID = "acamera_stream"
+
+        const val MAX_VIEWERS_DEFAULT = 4
+        // Viewer ID of the standby connection until a viewer claims it
+        const val STANDBY_ID = "standby"
+        private const val RTC_THREAD_NAME = "aCamera RtcClient"
+    }
+
+    /**
+     * Viewer a peer connection belongs to, its observer reads the ID whenever it needs it.
+     * The standby connection belongs to [STANDBY_ID] until a viewer claims it.
+     */
+    class Owner internal constructor(viewerId: String) {
+        @Volatile
+        var viewerId = viewerId
+            internal set
+        val isStandby get() = viewerId == STANDBY_ID
+
+        // When the viewer joined and whether it got the standby offer, see onViewerConnected()
+        @Volatile
+        internal var joinedNanos = System.nanoTime()
+        @Volatile
+        internal var isFromStandby = false
+        @Volatile
+        internal var isConnected = false
     }
 
+    /**
+     * Snapshot of what is sent to a single viewer
+     */
+    data class ViewerStats(
+        val viewerId: String,
+        val connectionState: PeerConnection.PeerConnectionState?,
+        val bytesSent: Long,
+        val packetsSent: Long,
+        val timestampUs: Double
+    )
+
     private lateinit var surfaceViewRenderer: SurfaceViewRenderer
 
     private var videoTrack: VideoTrack? = null
     private var audioTrack: AudioTrack? = null
-    private var isVideoInitialized = false
-    private var isAudioInitialized = false
-    private var isStreamInitialized = false
+    @Volatile private var isVideoInitialized = false
+    @Volatile private var isAudioInitialized = false
     private var cameraUsed = Camera.NONE
     private var isFlashEnabled = false
     private var resolution = Ratio(1280, 720)
@@ -40,7 +80,11 @@ class RtcClient(
 
     private val rootEglBase: EglBase = EglBase.create()
     private val iceServer = listOf(PeerConnection.IceServer.builder("stun:stun.l.google.com:19302").createIceServer())
-    private val peerConnectionFactory by lazy { buildPeerConnectionFactory() }
+    private val factoryInitialization = lazy { initPeerConnectionFactory(context) }
+    private val peerConnectionFactory by lazy {
+        factoryInitialization.value
+        buildPeerConnectionFactory()
+    }
     private val mediaStream by lazy { peerConnectionFactory.createLocalMediaStream(STREAM_ID) }
     private val cameraManager = context.getSystemService(Context.CAMERA_SERVICE) as CameraManager
     private val camera2Enumerator by lazy { FlashCamera2Enumerator(context, cameraManager) }
@@ -48,21 +92,48 @@ class RtcClient(
     private val videoCapturer by lazy { getLocalVideoCapturer() }
     private val videoSource by lazy { peerConnectionFactory.createVideoSource(false) }
     private val audioSource by lazy { peerConnectionFactory.createAudioSource(MediaConstraints()) }
-    private val peerConnection by lazy { buildPeerConnection(observer) }
+    // One peer connection per viewer, all of them share the same sources and capturer
+    private val peerConnections = ConcurrentHashMap<String, PeerConnection>()
+    // Last stats and bitrate of every viewer, a bitrate needs two samples
+    private val lastViewerStats = ConcurrentHashMap<String, ViewerStats>()
+    private val viewerBitrates = ConcurrentHashMap<String, Double>()
+    // Viewers with an offer they have not answered yet, and the ones of them that need another offer after that
+    private val negotiatingViewers = ConcurrentHashMap.newKeySet<String>()
+    private val pendingRenegotiations = ConcurrentHashMap.newKeySet<String>()
+    // Connection with an offer and gathered candidates ready for the next viewer, it is no viewer until claimed
+    private var standby: PeerConnection? = null
+    private var standbyOwner: Owner? = null
+    // Set once the local client wants a standby connection, it is only created once the stream has a track
+    @Volatile private var isStandbyWanted = false
+    // Creating a peer connection takes a while, standby connections are created here instead of on the caller's thread
+    private val executor = Executors.newSingleThreadExecutor { Thread(it, RTC_THREAD_NAME) }
     private val surfaceTextureHelper by lazy { SurfaceTextureHelper.create(Thread.currentThread().name, rootEglBase.eglBaseContext) }
 
-    init {
-        Log.d(TAG, "Creating RTC Client...")
-        initPeerConnectionFactory(context)
-        Log.d(TAG, "Creating RTC Client done")
+    /**
+     * Initialize WebRTC, this can be called from any thread ahead of time.
+     * Otherwise it happens when the peer connection factory is first needed.
+     */
+    fun initialize() {
+        factoryInitialization.value
+    }
+
+    /**
+     * Look up the cameras and their supported formats, so starting the video later does not have to
+     */
+    fun enumerateCameras() {
+        camera2Enumerator.deviceNames.forEach {
+            camera2Enumerator.getSupportedFormats(it)
+        }
     }
 
     private fun initPeerConnectionFactory(context: Application) {
+        Log.d(TAG, "Initializing peer connection factory...")
         val options = PeerConnectionFactory.InitializationOptions.builder(context)
             .setEnableInternalTracer(true)
             .setFieldTrials("WebRTC-H264HighProfile/Enabled/")
             .createInitializationOptions()
         PeerConnectionFactory.initialize(options)
+        Log.d(TAG, "Initializing peer connection factory done")
     }
 
     private fun buildPeerConnectionFactory(): PeerConnectionFactory {
@@ -159,14 +230,20 @@ class RtcClient(
      * Media Stream
      */
 
-    private fun updateMediaStream() {
+    /**
+     * Add the tracks that are not in the stream yet.
+     * Returns true if one was added, offers made before don't have it.
+     */
+    private fun updateMediaStream(): Boolean {
         Log.d(TAG, "Updating stream...")
+        var isChanged = false
 
         if (!isVideoInitialized && videoTrack != null) {
             Log.d(TAG, "Initializing video track...")
             mediaStream.addTrack(videoTrack).also {
                 Log.d(TAG, "Initializing video track done")
                 isVideoInitialized = it
+                isChanged = it
             }
         }
         if (!isAudioInitialized && audioTrack != null) {
@@ -174,22 +251,12 @@ class RtcClient(
             mediaStream.addTrack(audioTrack).also {
                 Log.d(TAG, "Initializing audio track done")
                 isAudioInitialized = it
-            }
-        }
-
-        if (!isStreamInitialized) {
-            Log.d(TAG, "Adding stream to peer connection...")
-            peerConnection?.addStream(mediaStream).also {
-                if (it != null) {
-                    Log.d(TAG, "Adding stream to peer connection done")
-                    isStreamInitialized = it
-                } else {
-                    Log.e(TAG, "Could not add stream, no peer connection available")
-                }
+                isChanged = isChanged || it
             }
         }
 
         Log.d(TAG, "Updating stream done")
+        return isChanged
     }
 
     /**
@@ -230,14 +297,17 @@ class RtcClient(
         videoCapturer.stopCapture()
     }
 
-    fun enableVideo(videoOutput: SurfaceViewRenderer) {
+    /**
+     * Start capturing, returns true if the stream got its video track just now
+     */
+    fun enableVideo(videoOutput: SurfaceViewRenderer): Boolean {
         if (videoTrack == null) {
             initVideo(videoOutput)
         } else {
             startVideo()
         }
         videoTrack?.setEnabled(true)
-        updateMediaStream()
+        return updateMediaStream()
     }
 
     fun disableVideo() {
@@ -252,12 +322,15 @@ class RtcClient(
         audioTrack = peerConnectionFactory.createAudioTrack(AUDIO_ID, audioSource)
     }
 
-    fun enableAudio() {
+    /**
+     * Start recording, returns true if the stream got its audio track just now
+     */
+    fun enableAudio(): Boolean {
         if (audioTrack == null) {
             initAudio()
         }
         audioTrack?.setEnabled(true)
-        updateMediaStream()
+        return updateMediaStream()
     }
 
     fun disableAudio() {
@@ -304,14 +377,215 @@ class RtcClient(
         }, constraints)
     }
 
-    fun offer(sdpObserver: SdpObserver) = peerConnection?.offer(sdpObserver)
+    /**
+     * Viewers
+     */
+
+    val viewerIds: Set<String> get() = peerConnections.keys
+
+    /**
+     * Create a peer connection for a new viewer.
+     * Returns false if the viewer was already added or there are too many viewers already.
+     */
+    @Synchronized
+    fun addViewer(viewerId: String): Boolean {
+        if (peerConnections.containsKey(viewerId)) return false
+        if (peerConnections.size >= maxViewers) {
+            Log.w(TAG, "Not adding viewer $viewerId, already serving $maxViewers viewers")
+            return false
+        }
+
+        Log.d(TAG, "Adding viewer $viewerId...")
+        val peerConnection = buildPeerConnection(observerFactory(Owner(viewerId))) ?: run {
+            Log.e(TAG, "Could not create peer connection for viewer $viewerId")
+            return false
+        }
+        if (!peerConnection.addStream(mediaStream)) {
+            Log.e(TAG, "Could not add stream to peer connection of viewer $viewerId")
+        }
+        peerConnections[viewerId] = peerConnection
+        Log.d(TAG, "Adding viewer $viewerId done, serving ${peerConnections.size} viewers")
+        return true
+    }
+
+    /**
+     * Create the standby connection and its offer in the background, so the next viewer does not have to wait
+     * for ICE gathering. Nothing happens if there already is one.
+     * An offer without tracks would show the viewer nothing, so the connection waits for the stream's first track.
+     */
+    fun prepareStandby() {
+        isStandbyWanted = true
+        try {
+            executor.execute { createStandby() }
+        } catch (error: RejectedExecutionException) {
+            Log.d(TAG, "Not preparing standby connection, client is destroyed")
+        }
+    }
+
+    @Synchronized
+    private fun createStandby() {
+        if (standby != null) return
+        if (!isVideoInitialized && !isAudioInitialized) {
+            Log.d(TAG, "Not preparing standby connection yet, the stream has no tracks")
+            return
+        }
+
+        Log.d(TAG, "Preparing standby connection...")
+        val owner = Owner(STANDBY_ID)
+        val peerConnection = buildPeerConnection(observerFactory(owner)) ?: run {
+            Log.e(TAG, "Could not create standby peer connection")
+            return
+        }
+        if (!peerConnection.addStream(mediaStream)) {
+            Log.e(TAG, "Could not add stream to standby peer connection")
+        }
+        standby = peerConnection
+        standbyOwner = owner
+        peerConnection.offer(SimpleSdpObserver())
+    }
+
+    /**
+     * Drop the standby connection after the stream changed, its offer does not have the new tracks.
+     * A new one is prepared if one is wanted.
+     * Returns true if there was one, its offer has to be withdrawn from the server then.
+     */
+    fun refreshStandby(): Boolean {
+        val isDropped = synchronized(this) {
+            val peerConnection = standby ?: return@synchronized false
+            Log.d(TAG, "Dropping standby connection, the stream changed")
+            standby = null
+            standbyOwner = null
+            peerConnection.removeStream(mediaStream)
+            peerConnection.dispose()
+            true
+        }
+        if (isStandbyWanted) prepareStandby()
+        return isDropped
+    }
+
+    /**
+     * Offer of the standby connection including all of its candidates, null until ICE gathering is complete
+     */
+    fun getStandbyOffer(): SessionDescription? = standby
+        ?.takeIf { it.iceGatheringState() == PeerConnection.IceGatheringState.COMPLETE }
+        ?.localDescription
+
+    /**
+     * Hand the standby connection to a new viewer, its observer reports for the viewer from now on.
+     * Returns false if there is none or the viewer can't be added, the standby connection is kept then.
+     */
+    @Synchronized
+    fun claimStandby(viewerId: String): Boolean {
+        val peerConnection = standby ?: return false
+        if (peerConnections.containsKey(viewerId) || peerConnections.size >= maxViewers) {
+            Log.w(TAG, "Not handing standby connection to viewer $viewerId, already serving ${peerConnections.size} viewers")
+            return false
+        }
+        standbyOwner?.let {
+            it.viewerId = viewerId
+            it.joinedNanos = System.nanoTime()
+            it.isFromStandby = true
+        }
+        standby = null
+        standbyOwner = null
+        peerConnections[viewerId] = peerConnection
+        // The offer the viewer gets was made by the standby connection already
+        negotiatingViewers.add(viewerId)
+        Log.d(TAG, "Handed standby connection to viewer $viewerId, serving ${peerConnections.size} viewers")
+        return true
+    }
+
+    /**
+     * Record how long the viewer of [owner] took from joining until its connection was up, once per viewer.
+     * Frames flow right after, the standby offer is meant to make this shorter.
+     */
+    fun onViewerConnected(owner: Owner) {
+        if (owner.isStandby || owner.isConnected) return
+        owner.isConnected = true
+        val seconds = (System.nanoTime() - owner.joinedNanos) / 1e9
+        Log.d(TAG, "Viewer ${owner.viewerId} connected after ${(seconds * 1000).toLong()}ms, standby offer: ${owner.isFromStandby}")
+        if (owner.isFromStandby) Metrics.viewerConnectTimeStandby.observe(seconds) else Metrics.viewerConnectTime.observe(seconds)
+    }
 
-    fun onRemoteSessionReceived(sessionDescription: SessionDescription) {
-        Log.d(TAG, "Received '${sessionDescription.type}'")
-        Log.v(TAG, sessionDescription.description)
+    fun removeViewer(viewerId: String) {
+        peerConnections.remove(viewerId)?.let {
+            Log.d(TAG, "Removing viewer $viewerId, serving ${peerConnections.size} viewers")
+            // The stream is shared with the other viewers, don't let dispose() take it down
+            it.removeStream(mediaStream)
+            it.dispose()
+            lastViewerStats.remove(viewerId)
+            viewerBitrates.remove(viewerId)
+            negotiatingViewers.remove(viewerId)
+            pendingRenegotiations.remove(viewerId)
+            Metrics.rtcOutboundBitrate.set(viewerBitrates.values.sum())
+        }
+    }
+
+    /**
+     * Update the outbound bitrate metric from the stats of all viewers
+     */
+    fun sampleOutboundBitrate() {
+        peerConnections.keys.forEach { viewerId ->
+            getViewerStats(viewerId) { stats ->
+                if (!peerConnections.containsKey(viewerId)) return@getViewerStats
+                lastViewerStats.put(viewerId, stats)?.let { last ->
+                    val seconds = (stats.timestampUs - last.timestampUs) / 1_000_000
+                    if (seconds > 0) viewerBitrates[viewerId] = (stats.bytesSent - last.bytesSent) * 8 / seconds
+                }
+                Metrics.rtcOutboundBitrate.set(viewerBitrates.values.sum())
+            }
+        }
+    }
+
+    fun getViewerStats(viewerId: String, callback: (ViewerStats) -> Unit) {
+        val peerConnection = peerConnections[viewerId] ?: return
+        peerConnection.getStats { report ->
+            var bytesSent = 0L
+            var packetsSent = 0L
+            report.statsMap.values.forEach {
+                if (it.type == "outbound-rtp") {
+                    bytesSent += (it.members["bytesSent"] as? Number)?.toLong() ?: 0L
+                    packetsSent += (it.members["packetsSent"] as? Number)?.toLong() ?: 0L
+                }
+            }
+            callback(ViewerStats(viewerId, peerConnection.connectionState(), bytesSent, packetsSent, report.timestampUs))
+        }
+    }
+
+    fun offer(viewerId: String, sdpObserver: SdpObserver) = peerConnections[viewerId]?.let {
+        negotiatingViewers.add(viewerId)
+        it.offer(sdpObserver)
+    }
+
+    /**
+     * Viewers that need a new offer because the stream got a new track.
+     * Viewers still negotiating are left out, [onNegotiationDone] tells when they need theirs.
+     */
+    fun getViewersToRenegotiate(): List<String> = peerConnections.keys.filter { viewerId ->
+        if (viewerId in negotiatingViewers) {
+            pendingRenegotiations.add(viewerId)
+            // Negotiation could have ended meanwhile
+            if (viewerId !in negotiatingViewers) pendingRenegotiations.remove(viewerId) else false
+        } else {
+            true
+        }
+    }
+
+    /**
+     * Call when the connection of [viewerId] is stable again.
+     * Returns true if the viewer needs a new offer, the stream changed while it was negotiating.
+     */
+    fun onNegotiationDone(viewerId: String): Boolean {
+        negotiatingViewers.remove(viewerId)
+        return pendingRenegotiations.remove(viewerId)
+    }
+
+    fun onRemoteSessionReceived(viewerId: String, sessionDescription: SessionDescription) {
+        Log.d(TAG, "Received '${sessionDescription.type}' from viewer $viewerId")
+        EventLog.v(TAG, "Remote description:", sessionDescription.description)
 
         Log.d(TAG, "Setting remote description...")
-        peerConnection?.setRemoteDescription(object : SdpObserver {
+        peerConnections[viewerId]?.setRemoteDescription(object : SdpObserver {
             override fun onSetFailure(p0: String?) {
                 Log.d(TAG, "Setting remote description failed")
             }
@@ -330,13 +604,20 @@ class RtcClient(
         }, sessionDescription)
     }
 
-    fun addIceCandidate(iceCandidate: IceCandidate?) {
-        Log.v(TAG, "Adding ICE candidate: ${iceCandidate?.toString()}")
-        peerConnection?.addIceCandidate(iceCandidate)
+    fun addIceCandidate(viewerId: String, iceCandidate: IceCandidate?) {
+        EventLog.v(TAG, "Adding ICE candidate for viewer", viewerId, iceCandidate)
+        peerConnections[viewerId]?.addIceCandidate(iceCandidate)
     }
 
     fun destroy() {
         stopVideo()
-        peerConnection?.close()
+        peerConnections.values.forEach { it.close() }
+        peerConnections.clear()
+        executor.shutdownNow()
+        synchronized(this) {
+            standby?.close()
+            standby = null
+            standbyOwner = null
+        }
     }
 }
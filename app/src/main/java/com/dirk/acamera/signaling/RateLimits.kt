@@ -0,0 +1,86 @@
+package com.dirk.acamera.signaling
+
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Limits of what viewers may send to the relay, the camera and clients in the same process are not limited.
+ *
+ * A session sending more than [sessionRate] messages per second is slowed down, after a burst of [sessionBurst].
+ * Its next message waits for its turn and the ones behind it stay in the socket.
+ * Messages of sessions within their rate are always relayed, that is what a viewer negotiating sends.
+ * The slowed down messages of all viewers together may go at [globalRate] per second after a burst of [globalBurst],
+ * messages beyond that are dropped so the camera does not drown in them.
+ * Clients beyond [maxSessions] are turned away right after the web socket handshake.
+ */
+class RateLimits(
+    val sessionRate: Double = SESSION_RATE_DEFAULT,
+    val sessionBurst: Double = SESSION_BURST_DEFAULT,
+    val globalRate: Double = GLOBAL_RATE_DEFAULT,
+    val globalBurst: Double = GLOBAL_BURST_DEFAULT,
+    val maxSessions: Int = MAX_SESSIONS_DEFAULT
+) {
+    companion object {
+        // A viewer joining sends a join, an answer and a few candidates
+        const val SESSION_RATE_DEFAULT = 20.0
+        const val SESSION_BURST_DEFAULT = 50.0
+        const val GLOBAL_RATE_DEFAULT = 500.0
+        const val GLOBAL_BURST_DEFAULT = 1000.0
+        const val MAX_SESSIONS_DEFAULT = 32
+    }
+}
+
+/**
+ * Rate limit counters of a server
+ */
+class RateLimitStatistics {
+    internal val throttled = AtomicLong()
+    internal val dropped = AtomicLong()
+    internal val rejected = AtomicLong()
+
+    /** Messages that had to wait because their session sent too fast */
+    val messagesThrottled get() = throttled.get()
+    /** Messages dropped because too many viewers sent faster than their rate */
+    val messagesDropped get() = dropped.get()
+    /** Clients turned away because there were too many */
+    val sessionsRejected get() = rejected.get()
+}
+
+/**
+ * Token bucket that gains [ratePerSecond] tokens per second and holds at most [burst] of them
+ */
+internal class TokenBucket(
+    private val ratePerSecond: Double,
+    private val burst: Double,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    private var tokens = burst
+    private var updatedNanos = nanoTime()
+
+    /**
+     * Take a token if there is one
+     */
+    @Synchronized
+    fun tryAcquire(): Boolean {
+        refill()
+        if (tokens < 1) return false
+        tokens -= 1
+        return true
+    }
+
+    /**
+     * Take a token even if there is none yet.
+     * Returns how many nanoseconds it takes until the token is actually there, 0 if it already is.
+     */
+    @Synchronized
+    fun reserve(): Long {
+        refill()
+        tokens -= 1
+        return if (tokens >= 0) 0 else (-tokens / ratePerSecond * 1e9).toLong()
+    }
+
+    private fun refill() {
+        val now = nanoTime()
+        tokens = minOf(burst, tokens + (now - updatedNanos) * ratePerSecond / 1e9)
+        updatedNanos = now
+    }
+}
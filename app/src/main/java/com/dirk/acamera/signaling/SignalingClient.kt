@@ -1,10 +1,9 @@
 package com.dirk.acamera.signaling
 
 import android.util.Log
+import com.dirk.acamera.utils.EventLog
+import com.dirk.acamera.utils.Metrics
 import com.google.gson.Gson
-import com.google.gson.JsonElement
-import com.google.gson.JsonNull
-import com.google.gson.JsonObject
 import io.ktor.client.HttpClient
 import io.ktor.client.engine.cio.CIO
 import io.ktor.client.features.json.GsonSerializer
@@ -14,26 +13,39 @@ import io.ktor.http.cio.websocket.Frame
 import io.ktor.http.cio.websocket.readText
 import io.ktor.network.tls.*
 import kotlinx.coroutines.*
-import kotlinx.coroutines.channels.ConflatedBroadcastChannel
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.selects.select
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
 import org.webrtc.IceCandidate
 import org.webrtc.SessionDescription
 import java.net.ConnectException
-import java.util.*
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicLong
 
 private const val TAG = "aCamera SignalingClient"
 
-@ObsoleteCoroutinesApi
 class SignalingClient(
-    private val listener: SignalingClientListener
+    private val listener: SignalingClientListener,
+    queueCapacity: Int = SEND_QUEUE_CAPACITY_DEFAULT,
+    private val overflowPolicy: OverflowPolicy = OverflowPolicy.SUSPEND,
+    private val candidateBatchWindowMillis: Long = 0
 ) : CoroutineScope {
 
     companion object {
-        // JSON strings
-        private const val JSON_TYPE = "type"
-        private const val JSON_SDP = "sdp"
-        private const val JSON_SDP_ANDROID = "description"
-        private const val JSON_SDP_MID = "sdpMid"
-        private const val JSON_SDP_MLI = "sdpMLineIndex"
+        const val SEND_QUEUE_CAPACITY_DEFAULT = 256
+        private const val SIGNALING_THREAD_NAME = "aCamera Signaling"
+    }
+
+    /**
+     * What happens to a message that is sent while the send queue is full
+     */
+    enum class OverflowPolicy {
+        /** Wait until there is space in the queue again */
+        SUSPEND,
+        /** Drop the new message and count it as dropped */
+        DROP_NEWEST
     }
 
     enum class State {
@@ -55,7 +67,11 @@ class SignalingClient(
     var retriesDone = 0
     val retriesTotal = 3
 
-    private val client = HttpClient(CIO) {
+    // Only needed for connections through the web socket
+    private val clientDelegate = lazy { createHttpClient() }
+    private val client by clientDelegate
+
+    private fun createHttpClient() = HttpClient(CIO) {
         install(WebSockets)
         install(JsonFeature) {
             serializer = GsonSerializer()
@@ -64,21 +80,52 @@ class SignalingClient(
             https {
                 serverName = "127.0.0.1"
                 cipherSuites = CIOCipherSuites.SupportedSuites
-                addKeyStore(SignalingServer.KEYSTORE, SignalingServer.KEYSTORE_PASS.toCharArray() as CharArray?, SignalingServer.CERT_ALIAS)
+                addKeyStore(SignalingServer.keyStore, SignalingServer.KEYSTORE_PASS.toCharArray() as CharArray?, SignalingServer.CERT_ALIAS)
                 trustManager = SignalingServer.x509TrustManager
             }
         }
     }
 
-    // Use Broadcast Channel to send data to clients
-    private val sendChannel = ConflatedBroadcastChannel<String>()
+    // Bounded queue keeps every message in order until it is written to the socket
+    // Messages still queued when the client is destroyed count as dropped
+    private val sendChannel = Channel<String>(queueCapacity) {
+        dropped.incrementAndGet()
+    }
+
+    // Send queue statistics
+    private val enqueued = AtomicLong()
+    private val sent = AtomicLong()
+    private val dropped = AtomicLong()
+    val messagesEnqueued get() = enqueued.get()
+    val messagesSent get() = sent.get()
+    val messagesDropped get() = dropped.get()
+
+    // Senders waiting for space in the queue are served in order
+    private val sendMutex = Mutex()
+
+    // ICE candidates waiting for the batch window to end, by target
+    private val pendingCandidates = HashMap<String?, MutableList<IceCandidate>>()
+    private val pendingCandidatesLock = Any()
+
+    // Listener callbacks are delivered one after another on their own thread
+    // so the connection setup does not have to wait for the main thread
+    private val signalingDispatcher = Executors.newSingleThreadExecutor {
+        Thread(it, SIGNALING_THREAD_NAME)
+    }.asCoroutineDispatcher()
+
+    // Time from receiving a frame until the listener is called
+    private val dispatchCount = AtomicLong()
+    private val dispatchNanosTotal = AtomicLong()
+    private val dispatchNanosMax = AtomicLong()
+    val dispatchLatencyAverageMicros get() = dispatchCount.get().let { if (it == 0L) 0 else dispatchNanosTotal.get() / it / 1000 }
+    val dispatchLatencyMaxMicros get() = dispatchNanosMax.get() / 1000
 
-    @ObsoleteCoroutinesApi
     fun connect(
         host: String = "127.0.0.1",
         port: Int = 8080,
         path: String = "",
-        waitMillis: Long = 0
+        waitMillis: Long = 0,
+        room: String = SignalingRouting.ROOM_DEFAULT
     ) = launch {
         state = State.CONNECTING
 
@@ -88,6 +135,7 @@ class SignalingClient(
 
         retriesDone++
         Log.d(TAG, "Connecting to socket '$host:$port$path' try $retriesDone of $retriesTotal")
+        val startNanos = System.nanoTime()
 
         try {
             client.wss(
@@ -95,87 +143,12 @@ class SignalingClient(
                 port = port,
                 path = path
             ) {
-                // At this point the connection is established
-                state = State.CONNECTION_ESTABLISHED
-                Log.d(TAG, "Connection to socket established")
-                listener.onConnectionEstablished()
-                val sendData = sendChannel.openSubscription()
-
-                // React to incoming and outgoing frames
-                try {
-                    while (true) {
-                        // Poll sendData to send data (duh)
-                        sendData.tryReceive().getOrNull()?.let {
-                            Log.v(TAG, "Sending: $it")
-                            outgoing.send(Frame.Text(it))
-                        }
-
-                        // Check if a frame is incoming
-                        incoming.tryReceive().getOrNull()?.let { frame ->
-                            if (frame is Frame.Text) {
-                                // Get text from received data
-                                val data = frame.readText()
-                                Log.v(TAG, "Received: $data")
-                                // Data could be "null"
-                                val jsonElement: JsonElement = gson.fromJson(data, JsonElement::class.java)
-                                if (jsonElement !is JsonNull) {
-                                    val jsonObject = jsonElement as JsonObject
-
-                                    withContext(Dispatchers.Main) {
-
-                                        // Frame is an ICE candidate?
-                                        if (jsonObject.has(JSON_SDP) && jsonObject.has(JSON_SDP_MID) && jsonObject.has(
-                                                JSON_SDP_MLI
-                                            )
-                                        ) {
-                                            Log.d(TAG, "Received message of type 'ICE candidate'")
-                                            listener.onIceCandidateReceived(
-                                                gson.fromJson(
-                                                    data,
-                                                    IceCandidate::class.java
-                                                )
-                                            )
-                                        }
-
-                                        // Frame is an ANSWER?
-                                        else if (jsonObject.has(JSON_TYPE)) {
-                                            // We may have to modify our message a little bit ...
-                                            // ... the type has to be uppercase
-                                            val jsonObjectType =
-                                                jsonObject.get(JSON_TYPE).asString.uppercase(Locale.getDefault())
-                                            jsonObject.remove(JSON_TYPE)
-                                            jsonObject.addProperty(JSON_TYPE, jsonObjectType)
-                                            // ... the description has to be called 'description'
-                                            //     but browsers call it 'sdp'
-                                            if (jsonObject.has(JSON_SDP)) {
-                                                val jsonObjectDesc =
-                                                    jsonObject.get(JSON_SDP).asString
-                                                jsonObject.remove(JSON_SDP)
-                                                jsonObject.addProperty(
-                                                    JSON_SDP_ANDROID,
-                                                    jsonObjectDesc
-                                                )
-                                            }
-                                            // Now the modified message can be parsed to GSON
-                                            // and given to the RTC client
-                                            val sessionDescription = gson.fromJson(
-                                                jsonObject,
-                                                SessionDescription::class.java
-                                            )
-                                            if (sessionDescription.type == SessionDescription.Type.ANSWER) {
-                                                Log.d(TAG, "Received message of type '" + SessionDescription.Type.ANSWER + "'")
-                                                listener.onAnswerReceived(sessionDescription)
-                                            }
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                    }
-                } catch (error: Throwable) {
-                    state = State.CONNECTION_ABORTED
-                    Log.e(TAG, "Something happened that upset me :'(", error)
-                    listener.onConnectionAborted()
+                // Join right away, the server waits for it before it relays anything
+                // Remote clients can only be viewers, they understand batches of candidates
+                outgoing.send(Frame.Text(SignalingRouting.encodeJoin(JoinMessage(SignalingRole.VIEWER, room, batching = true))))
+                onConnectionEstablished(startNanos)
+                runSession(incoming, { if (it is Frame.Text) it.readText() else null }) {
+                    outgoing.send(Frame.Text(it))
                 }
             }
         } catch (error: ConnectException) {
@@ -186,12 +159,200 @@ class SignalingClient(
         }
     }
 
-    fun send(dataObject: Any?) = runBlocking {
-        sendChannel.send(gson.toJson(dataObject))
+    /**
+     * Connect to a [SignalingServer] running in the same process.
+     * Messages are passed through memory, no TLS web socket is involved.
+     */
+    fun connectLocal(server: SignalingServer) = connectLocal { server.connectLocal() }
+
+    internal fun connectLocal(connect: () -> LocalSignalingConnection) = launch {
+        state = State.CONNECTING
+        Log.d(TAG, "Connecting to local server")
+        val startNanos = System.nanoTime()
+
+        val connection = connect()
+        try {
+            onConnectionEstablished(startNanos)
+            runSession(connection.incoming, { it }) {
+                connection.send(it)
+            }
+        } finally {
+            connection.close()
+        }
+    }
+
+    private fun onConnectionEstablished(startNanos: Long) {
+        // At this point the connection is established
+        state = State.CONNECTION_ESTABLISHED
+        Log.d(TAG, "Connection established after ${(System.nanoTime() - startNanos) / 1000}us")
+        listener.onConnectionEstablished()
+    }
+
+    private suspend fun <T> runSession(
+        incoming: ReceiveChannel<T>,
+        readText: (T) -> String?,
+        send: suspend (String) -> Unit
+    ) {
+        // React to incoming and outgoing frames
+        // Suspend until either side has something to do, so an idle session costs no CPU
+        try {
+            var isOpen = true
+            while (isOpen) {
+                isOpen = select {
+                    // Send data queued by send()
+                    sendChannel.onReceiveCatching { result ->
+                        result.getOrNull()?.let {
+                            EventLog.v(TAG, "Sending:", it)
+                            send(it)
+                            sent.incrementAndGet()
+                        }
+                        !result.isClosed
+                    }
+
+                    // Handle incoming frames
+                    incoming.onReceiveCatching { result ->
+                        result.getOrNull()?.let(readText)?.let {
+                            onTextReceived(it)
+                        }
+                        !result.isClosed
+                    }
+                }
+            }
+            Log.d(TAG, "Connection closed")
+        } catch (error: Throwable) {
+            Log.e(TAG, "Something happened that upset me :'(", error)
+        }
+        state = State.CONNECTION_ABORTED
+        listener.onConnectionAborted()
+    }
+
+    private suspend fun onTextReceived(data: String) {
+        val receivedNanos = System.nanoTime()
+        EventLog.v(TAG, "Received:", data)
+        // Data could be "null" or something we don't understand
+        val message = try {
+            SignalingMessageDecoder.decode(data)
+        } catch (error: Exception) {
+            Log.w(TAG, "Could not decode message", error)
+            null
+        } ?: return
+
+        withContext(signalingDispatcher) {
+            recordDispatchLatency(System.nanoTime() - receivedNanos)
+            when (message) {
+                // Frame is an ICE candidate?
+                is SignalingMessage.Candidate -> {
+                    EventLog.d(TAG, "Received message of type 'ICE candidate'")
+                    listener.onIceCandidateReceived(message.from, message.iceCandidate)
+                }
+
+                // Frame is a batch of ICE candidates?
+                is SignalingMessage.Candidates -> {
+                    EventLog.d(TAG, "Received message of type 'ICE candidates'", message.iceCandidates.size)
+                    message.iceCandidates.forEach { listener.onIceCandidateReceived(message.from, it) }
+                }
+
+                // Frame is an ANSWER?
+                is SignalingMessage.Description -> {
+                    if (message.sessionDescription.type == SessionDescription.Type.ANSWER) {
+                        EventLog.d(TAG, "Received message of type 'ANSWER'")
+                        listener.onAnswerReceived(message.from, message.sessionDescription)
+                    }
+                }
+            }
+        }
+    }
+
+    private fun recordDispatchLatency(nanos: Long) {
+        dispatchCount.incrementAndGet()
+        dispatchNanosTotal.addAndGet(nanos)
+        val maxNanos = dispatchNanosMax.accumulateAndGet(nanos, ::maxOf)
+        Metrics.signalingDispatchTime.observe(nanos / 1e9)
+        if (maxNanos == nanos) Metrics.signalingDispatchMax.set(maxNanos / 1e9)
+    }
+
+    /**
+     * Queue [dataObject] for sending without blocking the calling thread.
+     * The message is queued right away if there is space, so calls from one thread keep their order.
+     * If [to] is set the server only delivers the message to that session.
+     * The result tells if the message was queued (true) or dropped (false).
+     */
+    fun send(dataObject: Any?, to: String? = null): Deferred<Boolean> = async(start = CoroutineStart.UNDISPATCHED) {
+        sendMutex.withLock { enqueue(toJson(dataObject, to)) }
+    }
+
+    /**
+     * Queue all [dataObjects] in order without blocking the calling thread.
+     * The result is the number of messages that were queued.
+     */
+    fun sendAll(dataObjects: Iterable<Any?>, to: String? = null): Deferred<Int> = async(start = CoroutineStart.UNDISPATCHED) {
+        sendMutex.withLock { dataObjects.count { enqueue(toJson(it, to)) } }
+    }
+
+    /**
+     * Make the server forget the standby offer sent before, the next viewer gets an offer of its own
+     */
+    fun withdrawStandby() = send(StandbyWithdrawal(), to = SignalingRouting.TARGET_STANDBY)
+
+    /**
+     * Queue an ICE candidate for sending.
+     * With a batch window, candidates for the same target that come within the window are sent as one message,
+     * the server hands them out one by one to clients that don't understand batches.
+     */
+    fun sendIceCandidate(iceCandidate: IceCandidate, to: String? = null) {
+        if (candidateBatchWindowMillis <= 0) {
+            send(iceCandidate, to)
+            return
+        }
+
+        val isFirst = synchronized(pendingCandidatesLock) {
+            pendingCandidates.getOrPut(to) { ArrayList() }.run {
+                add(iceCandidate)
+                size == 1
+            }
+        }
+        if (isFirst) {
+            launch {
+                delay(candidateBatchWindowMillis)
+                flushCandidates(to)
+            }
+        }
+    }
+
+    private fun flushCandidates(to: String?) {
+        val candidates = synchronized(pendingCandidatesLock) { pendingCandidates.remove(to) } ?: return
+        EventLog.v(TAG, "Sending ICE candidates:", candidates.size)
+        send(if (candidates.size == 1) candidates.first() else CandidateBatch(candidates), to)
+    }
+
+    private fun toJson(dataObject: Any?, to: String?): String {
+        val text = gson.toJson(dataObject)
+        return if (to == null) text else SignalingRouting.withTarget(text, to)
+    }
+
+    private suspend fun enqueue(text: String): Boolean {
+        when (overflowPolicy) {
+            OverflowPolicy.SUSPEND -> {
+                sendChannel.send(text)
+            }
+            OverflowPolicy.DROP_NEWEST -> {
+                if (sendChannel.trySend(text).isFailure) {
+                    dropped.incrementAndGet()
+                    Log.w(TAG, "Send queue is full, message dropped")
+                    return false
+                }
+            }
+        }
+        enqueued.incrementAndGet()
+        return true
     }
 
     fun destroy() {
-        client.close()
+        Log.d(TAG, "Messages enqueued: $messagesEnqueued sent: $messagesSent dropped: $messagesDropped")
+        Log.d(TAG, "Dispatch latency average: ${dispatchLatencyAverageMicros}us max: ${dispatchLatencyMaxMicros}us")
+        sendChannel.cancel()
+        if (clientDelegate.isInitialized()) client.close()
         job.complete()
+        signalingDispatcher.close()
     }
 }
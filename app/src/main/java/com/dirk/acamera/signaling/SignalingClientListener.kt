@@ -7,7 +7,7 @@ interface SignalingClientListener {
     fun onConnectionEstablished()
     fun onConnectionFailed()
     fun onConnectionAborted()
-    fun onOfferReceived(description: SessionDescription)
-    fun onAnswerReceived(description: SessionDescription)
-    fun onIceCandidateReceived(iceCandidate: IceCandidate)
+    fun onOfferReceived(from: String?, description: SessionDescription)
+    fun onAnswerReceived(from: String?, description: SessionDescription)
+    fun onIceCandidateReceived(from: String?, iceCandidate: IceCandidate)
 }
@@ -0,0 +1,88 @@
+package com.dirk.acamera.signaling
+
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import io.ktor.server.cio.CIO as CioEngine
+
+/**
+ * Engine the signaling server runs on, both serve the same routes.
+ *
+ * Only Netty serves TLS. ktor's CIO server does not support it (as of ktor 1.6), it serves plain http and ws.
+ * It is there to compare footprints and for setups that terminate TLS elsewhere.
+ */
+enum class SignalingEngine(val supportsTls: Boolean) {
+    NETTY(true),
+    CIO(false);
+
+    /**
+     * Scheme of the web client's URL
+     */
+    val scheme get() = if (supportsTls) "https" else "http"
+
+    /**
+     * Create an engine of this kind for [environment] with the pools of [threading],
+     * [configureNetty] only applies to Netty
+     */
+    fun create(
+        environment: ApplicationEngineEnvironment,
+        threading: ServerThreading = ServerThreading.DEFAULT,
+        configureNetty: NettyApplicationEngine.Configuration.() -> Unit = {}
+    ): ApplicationEngine = when (this) {
+        NETTY -> embeddedServer(Netty, environment) {
+            threading.applyTo(this)
+            configureNetty()
+        }
+        CIO -> embeddedServer(CioEngine, environment) {
+            threading.applyTo(this)
+        }
+    }
+}
+
+/**
+ * Thread pools of the server, sizes that are null keep ktor's defaults.
+ *
+ * ktor sizes its pools for a busy server: with n cores, (n / 2 + 1) threads accept connections,
+ * another (n / 2 + 1) handle their I/O and n run the calls. A phone serves a handful of sockets.
+ * The server's own coroutines (startup, shutdown) run on the shared Dispatchers.IO.
+ */
+class ServerThreading(
+    val connectionGroupSize: Int? = null,
+    val workerGroupSize: Int? = null,
+    val callGroupSize: Int? = null
+) {
+    companion object {
+        /** ktor's pools */
+        val DEFAULT = ServerThreading()
+
+        /**
+         * Pools for a handful of sockets on [cores] cores: one thread accepts,
+         * I/O and calls get a quarter of the cores each, at least one and at most two.
+         */
+        fun auto(cores: Int = Runtime.getRuntime().availableProcessors()) = ServerThreading(
+            connectionGroupSize = 1,
+            workerGroupSize = (cores / 4).coerceIn(1, 2),
+            callGroupSize = (cores / 4).coerceIn(1, 2)
+        )
+
+        /**
+         * Parse "default", "auto" or sizes as "connection,worker,call"
+         */
+        fun parse(text: String) = when (text.lowercase()) {
+            "default" -> DEFAULT
+            "auto" -> auto()
+            else -> text.split(',').map { it.trim().toInt() }.let {
+                ServerThreading(it[0], it[1], it[2])
+            }
+        }
+    }
+
+    internal fun applyTo(configuration: ApplicationEngine.Configuration) {
+        connectionGroupSize?.let { configuration.connectionGroupSize = it }
+        workerGroupSize?.let { configuration.workerGroupSize = it }
+        callGroupSize?.let { configuration.callGroupSize = it }
+    }
+
+    override fun toString() =
+        "connection: ${connectionGroupSize ?: "default"} worker: ${workerGroupSize ?: "default"} " +
+            "call: ${callGroupSize ?: "default"}"
+}
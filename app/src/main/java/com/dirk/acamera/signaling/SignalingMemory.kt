@@ -0,0 +1,147 @@
+package com.dirk.acamera.signaling
+
+import io.ktor.http.cio.websocket.*
+import java.io.IOException
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Memory counters shared by all sessions of a server.
+ * Sizes are counted in bytes for incoming messages and in characters for queued ones,
+ * signaling messages are ASCII JSON.
+ */
+class MemoryStatistics {
+    internal val buffered = AtomicLong()
+    internal val bufferedMax = AtomicLong()
+    internal val allocated = AtomicLong()
+    internal val reused = AtomicLong()
+    internal val rejected = AtomicLong()
+
+    /** Bytes currently held by all sessions, messages being reassembled and queued in outboxes */
+    val bytesBuffered get() = buffered.get()
+    /** Highest number of bytes held by a single session */
+    val bytesBufferedMax get() = bufferedMax.get()
+    /** Reassembly buffers that had to be allocated */
+    val buffersAllocated get() = allocated.get()
+    /** Reassembly buffers taken from the pool */
+    val buffersReused get() = reused.get()
+    /** Clients disconnected because a message was too big or they went over their budget */
+    val sessionsRejected get() = rejected.get()
+}
+
+/**
+ * Thrown when a client sends a message bigger than allowed or goes over its memory budget
+ */
+class MessageTooBigException(message: String) : IOException(message)
+
+/**
+ * Bytes held by a single session, they may not go over [budget]
+ */
+internal class SessionMemory(private val budget: Long, private val statistics: MemoryStatistics) {
+    private val used = AtomicLong()
+
+    /**
+     * Returns false if [bytes] more would go over the budget
+     */
+    fun tryReserve(bytes: Long): Boolean {
+        while (true) {
+            val current = used.get()
+            if (current + bytes > budget) return false
+            if (used.compareAndSet(current, current + bytes)) {
+                statistics.buffered.addAndGet(bytes)
+                statistics.bufferedMax.accumulateAndGet(current + bytes, ::maxOf)
+                return true
+            }
+        }
+    }
+
+    fun release(bytes: Long) {
+        used.addAndGet(-bytes)
+        statistics.buffered.addAndGet(-bytes)
+    }
+
+    fun releaseAll() {
+        statistics.buffered.addAndGet(-used.getAndSet(0))
+    }
+}
+
+/**
+ * Reassembly buffers of [bufferSize] bytes, at most [capacity] of them are kept for reuse
+ */
+internal class BufferPool(
+    val bufferSize: Int,
+    private val capacity: Int,
+    private val statistics: MemoryStatistics
+) {
+    private val buffers = ConcurrentLinkedQueue<ByteArray>()
+    private val pooled = AtomicInteger()
+
+    fun acquire(): ByteArray {
+        val buffer = buffers.poll()
+        return if (buffer != null) {
+            pooled.decrementAndGet()
+            statistics.reused.incrementAndGet()
+            buffer
+        } else {
+            statistics.allocated.incrementAndGet()
+            ByteArray(bufferSize)
+        }
+    }
+
+    fun release(buffer: ByteArray) {
+        if (pooled.incrementAndGet() <= capacity) {
+            buffers.offer(buffer)
+        } else {
+            pooled.decrementAndGet()
+        }
+    }
+}
+
+/**
+ * Turns the text frames of one raw web socket session into messages.
+ * A message in a single frame is decoded right away, fragments are collected in a pooled buffer first.
+ * Continuation frames arrive as frames of the type the message started with.
+ * Messages may not be bigger than the pool's buffers and have to fit into the session's memory budget.
+ */
+internal class MessageAssembler(private val pool: BufferPool, private val memory: SessionMemory) {
+    private var buffer: ByteArray? = null
+    private var length = 0
+
+    /**
+     * Text of the message [frame] completes, null if more fragments follow or it is no text
+     */
+    fun add(frame: Frame): String? {
+        if (frame !is Frame.Text) return null
+        val data = frame.data
+        if (frame.fin && buffer == null) {
+            if (data.size > pool.bufferSize) throw MessageTooBigException("Message of ${data.size} bytes")
+            return String(data, Charsets.UTF_8)
+        }
+
+        if (length + data.size > pool.bufferSize) {
+            throw MessageTooBigException("Message of more than ${pool.bufferSize} bytes")
+        }
+        if (!memory.tryReserve(data.size.toLong())) {
+            throw MessageTooBigException("Memory budget exceeded")
+        }
+        val target = buffer ?: pool.acquire().also { buffer = it }
+        System.arraycopy(data, 0, target, length, data.size)
+        length += data.size
+        if (!frame.fin) return null
+
+        val text = String(target, 0, length, Charsets.UTF_8)
+        release()
+        return text
+    }
+
+    /**
+     * Give back the buffer of an unfinished message
+     */
+    fun release() {
+        buffer?.let { pool.release(it) }
+        buffer = null
+        memory.release(length.toLong())
+        length = 0
+    }
+}
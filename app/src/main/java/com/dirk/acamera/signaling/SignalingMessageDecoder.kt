@@ -0,0 +1,162 @@
+package com.dirk.acamera.signaling
+
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import org.webrtc.IceCandidate
+import org.webrtc.SessionDescription
+import java.io.Reader
+import java.io.StringReader
+import java.util.*
+
+/**
+ * Message received by the signaling client
+ */
+sealed class SignalingMessage {
+    /** ID of the session that sent the message, if the server told us */
+    abstract val from: String?
+
+    class Candidate(override val from: String?, val iceCandidate: IceCandidate) : SignalingMessage()
+    class Candidates(override val from: String?, val iceCandidates: List<IceCandidate>) : SignalingMessage()
+    class Description(override val from: String?, val sessionDescription: SessionDescription) : SignalingMessage()
+}
+
+/**
+ * Batch of ICE candidates as it is sent, see [SignalingRouting]
+ */
+internal class CandidateBatch(val candidates: List<IceCandidate>) {
+    val type = SignalingRouting.TYPE_CANDIDATES
+}
+
+/**
+ * Withdrawal of the standby offer as it is sent, see [SignalingRouting]
+ */
+internal class StandbyWithdrawal {
+    val type = SignalingRouting.TYPE_WITHDRAW
+}
+
+/**
+ * Decodes signaling frames in a single pass without building a JSON tree first.
+ *
+ * Browsers and Android name things differently, both are understood:
+ * - the description type can be lowercase ('answer') or uppercase ('ANSWER')
+ * - the description itself can be called 'sdp' or 'description'
+ * - a candidate can be called 'sdp' or 'candidate'
+ */
+object SignalingMessageDecoder {
+    // JSON strings
+    private const val JSON_FROM = "from"
+    private const val JSON_TYPE = "type"
+    private const val JSON_SDP = "sdp"
+    private const val JSON_SDP_ANDROID = "description"
+    private const val JSON_SDP_MID = "sdpMid"
+    private const val JSON_SDP_MLI = "sdpMLineIndex"
+    private const val JSON_CANDIDATE = "candidate"
+    private const val JSON_CANDIDATES = SignalingRouting.TYPE_CANDIDATES
+
+    /**
+     * Decode [text] into a message.
+     * Returns null if the frame is "null" or is neither an ICE candidate nor a session description.
+     */
+    fun decode(text: String): SignalingMessage? = decode(StringReader(text))
+
+    fun decode(input: Reader): SignalingMessage? {
+        val reader = JsonReader(input)
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue()
+            return null
+        }
+
+        var from: String? = null
+        var type: String? = null
+        var sdp: String? = null
+        var hasSdpMid = false
+        var sdpMid: String? = null
+        var sdpMLineIndex: Int? = null
+        var candidates: List<IceCandidate>? = null
+
+        reader.beginObject()
+        while (reader.hasNext()) {
+            when (reader.nextName()) {
+                // The relay puts the sender first, a "from" the client wrote itself comes after it
+                JSON_FROM -> if (from == null) from = reader.nextStringOrNull() else reader.skipValue()
+                JSON_TYPE -> type = reader.nextStringOrNull()
+                JSON_SDP -> sdp = reader.nextStringOrNull()
+                JSON_SDP_ANDROID -> if (sdp == null) sdp = reader.nextStringOrNull() else reader.skipValue()
+                JSON_SDP_MID -> {
+                    hasSdpMid = true
+                    sdpMid = reader.nextStringOrNull()
+                }
+                JSON_SDP_MLI -> sdpMLineIndex = reader.nextIntOrNull()
+                JSON_CANDIDATE -> if (sdp == null) sdp = reader.nextStringOrNull() else reader.skipValue()
+                JSON_CANDIDATES -> candidates = readCandidates(reader)
+                else -> reader.skipValue()
+            }
+        }
+        reader.endObject()
+
+        // Frame is a batch of ICE candidates?
+        if (type == SignalingRouting.TYPE_CANDIDATES) {
+            return candidates?.let { SignalingMessage.Candidates(from, it) }
+        }
+
+        // Frame is an ICE candidate?
+        if (sdp != null && hasSdpMid && sdpMLineIndex != null) {
+            return SignalingMessage.Candidate(from, IceCandidate(sdpMid, sdpMLineIndex, sdp))
+        }
+
+        // Frame is a session description?
+        if (type != null) {
+            val upperType = type.uppercase(Locale.ROOT)
+            val descriptionType = SessionDescription.Type.values().find { it.name == upperType } ?: return null
+            return SignalingMessage.Description(from, SessionDescription(descriptionType, sdp))
+        }
+
+        return null
+    }
+
+    private fun readCandidates(reader: JsonReader): List<IceCandidate>? {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            reader.skipValue()
+            return null
+        }
+
+        val candidates = ArrayList<IceCandidate>()
+        reader.beginArray()
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue()
+                continue
+            }
+            var sdp: String? = null
+            var sdpMid: String? = null
+            var sdpMLineIndex: Int? = null
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    JSON_SDP, JSON_CANDIDATE -> if (sdp == null) sdp = reader.nextStringOrNull() else reader.skipValue()
+                    JSON_SDP_MID -> sdpMid = reader.nextStringOrNull()
+                    JSON_SDP_MLI -> sdpMLineIndex = reader.nextIntOrNull()
+                    else -> reader.skipValue()
+                }
+            }
+            reader.endObject()
+            if (sdp != null && sdpMLineIndex != null) candidates.add(IceCandidate(sdpMid, sdpMLineIndex, sdp))
+        }
+        reader.endArray()
+        return candidates
+    }
+
+    private fun JsonReader.nextIntOrNull(): Int? = if (peek() == JsonToken.NULL) {
+        nextNull()
+        null
+    } else {
+        nextInt()
+    }
+
+    private fun JsonReader.nextStringOrNull(): String? = if (peek() == JsonToken.NULL) {
+        nextNull()
+        null
+    } else {
+        nextString()
+    }
+}
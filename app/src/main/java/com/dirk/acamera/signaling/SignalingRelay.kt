@@ -0,0 +1,400 @@
+package com.dirk.acamera.signaling
+
+import android.util.Log
+import com.dirk.acamera.utils.EventLog
+import com.dirk.acamera.utils.MetricsRegistry
+import io.ktor.http.cio.websocket.*
+import io.ktor.websocket.*
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.currentCoroutineContext
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+private const val TAG = "aCamera SignalingRelay"
+
+/**
+ * Keeps track of the connected signaling clients and relays messages between them.
+ * It only depends on ktor's web socket session, not on the engine, TLS or the Android context,
+ * so the signaling server and the load test ('loadtest' module) run the same code.
+ *
+ * Clients are served on raw web socket sessions ('webSocketRaw'). ktor's default sessions join fragmented messages
+ * without any limit, the relay reassembles them itself within [maxMessageSize] and the session's memory budget.
+ * It also answers pings and close frames itself and pings clients every [pingPeriodMillis],
+ * a client that sends nothing for [pingTimeoutMillis] longer is disconnected.
+ */
+class SignalingRelay(
+    private val listener: SignalingServerListener,
+    private val outboxCapacity: Int = OUTBOX_CAPACITY_DEFAULT,
+    private val outboxOverflowPolicy: OutboxOverflowPolicy = OutboxOverflowPolicy.DROP_OLDEST,
+    val metrics: MetricsRegistry = MetricsRegistry(),
+    private val maxMessageSize: Int = MESSAGE_SIZE_MAX_DEFAULT,
+    private val sessionMemoryBudget: Long = SESSION_MEMORY_BUDGET_DEFAULT,
+    private val rateLimits: RateLimits = RateLimits(),
+    private val pingPeriodMillis: Long = PING_PERIOD_MILLIS_DEFAULT,
+    private val pingTimeoutMillis: Long = PING_TIMEOUT_MILLIS_DEFAULT
+) {
+
+    companion object {
+        const val OUTBOX_CAPACITY_DEFAULT = 128
+        // An offer with all of its candidates is a few kilobytes
+        const val MESSAGE_SIZE_MAX_DEFAULT = 64 * 1024
+        const val SESSION_MEMORY_BUDGET_DEFAULT = 256 * 1024L
+        const val PING_PERIOD_MILLIS_DEFAULT = 60_000L
+        const val PING_TIMEOUT_MILLIS_DEFAULT = 15_000L
+        private const val JOIN_TIMEOUT_MILLIS = 1000L
+        private const val POOLED_BUFFERS = 4
+    }
+
+    var connections = 0
+        private set
+    var viewerConnections = 0
+        private set
+    val outboxStatistics = OutboxStatistics()
+    val memoryStatistics = MemoryStatistics()
+    val rateLimitStatistics = RateLimitStatistics()
+
+    // Remote clients being served, counted before they join so the admission gate holds for clients still joining
+    private val admitted = AtomicInteger()
+    private val globalBucket = TokenBucket(rateLimits.globalRate, rateLimits.globalBurst)
+
+    // Fragmented messages are rare, a few buffers are enough for all sessions
+    private val bufferPool = BufferPool(maxMessageSize, POOLED_BUFFERS, memoryStatistics)
+
+    // Copy on write: the array is only replaced when a client joins or leaves,
+    // relaying reads the current snapshot without locking or allocating
+    private class SessionHandle(
+        val id: String,
+        val session: SignalingSession,
+        val role: SignalingRole,
+        val room: String,
+        val batching: Boolean
+    )
+    @Volatile private var sessions = emptyArray<SessionHandle>()
+    private val sessionsLock = Any()
+
+    // Per room: the camera's standby offer and the candidates sent after it, handed to the next viewer that joins
+    private val standbyCache = ConcurrentHashMap<String, List<String>>()
+
+    // Message sizes are counted in characters, signaling messages are ASCII JSON
+    private val framesRelayed = metrics.counter("acamera_signaling_frames_relayed_total", "Frames received from clients and relayed")
+    private val receivedBytes = metrics.counter("acamera_signaling_received_bytes_total", "Bytes received from clients")
+    private val sentBytes = metrics.counter("acamera_signaling_sent_bytes_total", "Bytes delivered to clients")
+    private val standbyServed = metrics.counter("acamera_signaling_standby_served_total", "Viewers that got a cached standby offer on join")
+    private val relayLatency = metrics.histogram(
+        "acamera_signaling_relay_latency_seconds",
+        "Time to hand a frame to all of its recipients",
+        0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1
+    )
+
+    init {
+        metrics.gauge("acamera_signaling_sessions", "Connected signaling clients") { sessions.size.toDouble() }
+        metrics.gauge("acamera_signaling_viewers", "Connected viewers") {
+            sessions.count { it.role == SignalingRole.VIEWER }.toDouble()
+        }
+        metrics.counter("acamera_signaling_outbox_dropped_total", "Messages dropped from full outboxes") { outboxStatistics.messagesDropped }
+        metrics.counter("acamera_signaling_outbox_evictions_total", "Sessions closed because their outbox was full") { outboxStatistics.sessionEvictions }
+        metrics.gauge("acamera_signaling_memory_bytes", "Bytes held for all sessions") { memoryStatistics.bytesBuffered.toDouble() }
+        metrics.gauge("acamera_signaling_memory_session_max_bytes", "Most bytes held for a single session") { memoryStatistics.bytesBufferedMax.toDouble() }
+        metrics.counter("acamera_signaling_buffers_allocated_total", "Reassembly buffers allocated") { memoryStatistics.buffersAllocated }
+        metrics.counter("acamera_signaling_buffers_reused_total", "Reassembly buffers taken from the pool") { memoryStatistics.buffersReused }
+        metrics.counter("acamera_signaling_rejected_total", "Sessions closed because a message was too big") { memoryStatistics.sessionsRejected }
+        metrics.counter("acamera_signaling_throttled_total", "Messages delayed because their session sent too fast") { rateLimitStatistics.messagesThrottled }
+        metrics.counter("acamera_signaling_rate_dropped_total", "Viewer messages dropped by the global rate limit") { rateLimitStatistics.messagesDropped }
+        metrics.counter("acamera_signaling_admission_rejected_total", "Clients turned away because there were too many") { rateLimitStatistics.sessionsRejected }
+    }
+
+    /**
+     * Serve a client connected through [socket] until it disconnects.
+     * Clients sending messages bigger than [maxMessageSize] or going over [sessionMemoryBudget] are disconnected,
+     * clients beyond [RateLimits.maxSessions] are turned away.
+     * Remote clients can only be viewers, the camera connects in process (see [connectLocal]).
+     */
+    suspend fun serve(socket: WebSocketServerSession): Unit = with(socket) {
+        // Turn clients away before anything is spent on them
+        if (admitted.incrementAndGet() > rateLimits.maxSessions) {
+            admitted.decrementAndGet()
+            rateLimitStatistics.rejected.incrementAndGet()
+            close(CloseReason(CloseReason.Codes.TRY_AGAIN_LATER, "Too many clients"))
+            return
+        }
+
+        val id = UUID.randomUUID().toString()
+        val bucket = TokenBucket(rateLimits.sessionRate, rateLimits.sessionBurst)
+        val memory = SessionMemory(sessionMemoryBudget, memoryStatistics)
+        val assembler = MessageAssembler(bufferPool, memory)
+        val session = WebSocketSignalingSession(this, outboxCapacity, outboxOverflowPolicy, outboxStatistics, memory)
+        val lastFrameNanos = AtomicLong(System.nanoTime())
+        val pinger = launchPinger(currentCoroutineContext()[Job], lastFrameNanos)
+        try {
+            // The client tells its role and room first
+            // Clients that don't are viewers in the default room
+            var isClosed = false
+            val firstText = withTimeoutOrNull(JOIN_TIMEOUT_MILLIS) {
+                receiveText(assembler, lastFrameNanos).also { isClosed = it == null }
+            }
+            if (isClosed) return
+            val join = firstText?.let { SignalingRouting.parseJoin(it) }
+            val role = join?.role ?: SignalingRole.VIEWER
+            val room = join?.room ?: SignalingRouting.ROOM_DEFAULT
+            if (role == SignalingRole.CAMERA) {
+                Log.w(TAG, "Closing client $id: remote clients can't join as camera")
+                close(CloseReason(CloseReason.Codes.VIOLATED_POLICY, "Only viewers can connect remotely"))
+                return
+            }
+
+            // A viewer takes the standby offer of its room, if the camera has one ready and can take the viewer.
+            // The camera is asked before the viewer is added, so it knows the connection belongs to this viewer
+            // by the time the viewer answers.
+            val standby = if (role == SignalingRole.VIEWER) claimStandby(id, room) else null
+
+            // Add session
+            val handle = addSession(session, id, role, room, join?.batching ?: false)
+            standby?.let {
+                EventLog.v(TAG, "Sending standby offer to", id)
+                it.forEach { text -> deliver(handle, text) }
+                standbyServed.inc()
+            }
+            if (firstText != null && join == null && admit(handle, bucket)) relay(handle, firstText)
+            while (true) {
+                val text = receiveText(assembler, lastFrameNanos) ?: break
+                if (admit(handle, bucket)) relay(handle, text)
+            }
+        } catch (error: MessageTooBigException) {
+            Log.w(TAG, "Closing client $id: ${error.message}")
+            memoryStatistics.rejected.incrementAndGet()
+            close(CloseReason(CloseReason.Codes.TOO_BIG, "Message too big"))
+        } finally {
+            pinger.cancel()
+            removeSession(id)
+            assembler.release()
+            session.close()
+            admitted.decrementAndGet()
+        }
+    }
+
+    /**
+     * Wait until the viewer session of [from] may send its next message, the camera is not limited.
+     * Returns false if the message has to be dropped because too many viewers send faster than their rate.
+     */
+    private suspend fun admit(from: SessionHandle, bucket: TokenBucket): Boolean {
+        // The camera's messages are what the viewers are waiting for, its offers and candidates grow with their
+        // number. It connects in process today, but a session rate sized for one viewer must never slow it down.
+        if (from.role == SignalingRole.CAMERA) return true
+        // A viewer within its own rate is negotiating, its answer and candidates are never dropped.
+        // Only messages of viewers sending faster than that share the global rate, so a flood can't starve them.
+        val waitNanos = bucket.reserve()
+        if (waitNanos <= 0) return true
+        rateLimitStatistics.throttled.incrementAndGet()
+        delay((waitNanos + 999_999) / 1_000_000)
+        if (!globalBucket.tryAcquire()) {
+            rateLimitStatistics.dropped.incrementAndGet()
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Next text message of the client, null once it disconnected.
+     * Control frames are answered on the way, [lastFrameNanos] is updated with every frame.
+     */
+    private suspend fun WebSocketServerSession.receiveText(assembler: MessageAssembler, lastFrameNanos: AtomicLong): String? {
+        for (frame in incoming) {
+            lastFrameNanos.set(System.nanoTime())
+            when (frame) {
+                is Frame.Ping -> outgoing.send(Frame.Pong(frame.data))
+                is Frame.Close -> {
+                    outgoing.send(Frame.Close(frame.readReason() ?: CloseReason(CloseReason.Codes.NORMAL, "")))
+                    return null
+                }
+                else -> assembler.add(frame)?.let { return it }
+            }
+        }
+        return null
+    }
+
+    /**
+     * Ping the client until it stops answering, then cancel [serving]
+     */
+    private fun WebSocketServerSession.launchPinger(serving: Job?, lastFrameNanos: AtomicLong) = launch {
+        while (true) {
+            delay(pingPeriodMillis)
+            if (System.nanoTime() - lastFrameNanos.get() > (pingPeriodMillis + pingTimeoutMillis) * 1_000_000) {
+                Log.w(TAG, "Client did not answer pings, closing it")
+                serving?.cancel()
+                return@launch
+            }
+            outgoing.send(Frame.Ping(ByteArray(0)))
+        }
+    }
+
+    /**
+     * Connect a signaling client running in the same process.
+     * The client joins like a remote one but its messages don't go through TLS and the socket.
+     */
+    fun connectLocal(
+        role: SignalingRole = SignalingRole.CAMERA,
+        room: String = SignalingRouting.ROOM_DEFAULT
+    ): LocalSignalingConnection {
+        val id = UUID.randomUUID().toString()
+        lateinit var handle: SessionHandle
+        val connection = LocalSignalingConnection(
+            onSend = { text -> relay(handle, text) },
+            onClose = { removeSession(id) }
+        )
+        handle = addSession(connection, id, role, room, batching = true)
+        return connection
+    }
+
+    /**
+     * IDs of the viewers currently connected to [room]
+     */
+    fun getViewerIds(room: String = SignalingRouting.ROOM_DEFAULT) =
+        sessions.filter { it.role == SignalingRole.VIEWER && it.room == room }.map { it.id }
+
+    /**
+     * Close all clients running in the same process
+     */
+    fun closeLocalConnections() =
+        sessions.map { it.session }.filterIsInstance<LocalSignalingConnection>().forEach { it.close() }
+
+    /**
+     * Messages only go between the camera and the viewers of the same room:
+     * - viewer messages go to the camera, tagged with the viewer's ID
+     * - camera messages go to the viewer they are addressed to, or to all viewers
+     * - camera messages addressed to [SignalingRouting.TARGET_STANDBY] are kept for the next viewer
+     */
+    private suspend fun relay(from: SessionHandle, text: String) {
+        val startNanos = System.nanoTime()
+        framesRelayed.inc()
+        receivedBytes.add(text.length.toLong())
+        when (from.role) {
+            SignalingRole.VIEWER -> {
+                val tagged = SignalingRouting.withSender(text, from.id)
+                // Only a tagged message says who sent it, anything else could claim to be from another viewer
+                if (SignalingRouting.readSender(tagged) != from.id) {
+                    EventLog.v(TAG, "Dropping message that is no JSON object from", from.id)
+                    return
+                }
+                for (handle in sessions) {
+                    if (handle.role != SignalingRole.CAMERA || handle.room != from.room) continue
+                    EventLog.v(TAG, "Sending to", handle.id, tagged)
+                    handle.session.deliver(tagged)
+                    sentBytes.add(tagged.length.toLong())
+                }
+            }
+            SignalingRole.CAMERA -> {
+                val target = SignalingRouting.readTarget(text)
+                if (target == SignalingRouting.TARGET_STANDBY) {
+                    cacheStandby(from.room, text)
+                    return
+                }
+                val isBatch = SignalingRouting.isCandidateBatch(text)
+                var singles: List<String>? = null
+                for (handle in sessions) {
+                    if (handle.role != SignalingRole.VIEWER || handle.room != from.room) continue
+                    if (target != null && handle.id != target) continue
+                    EventLog.v(TAG, "Sending to", handle.id, text)
+                    if (isBatch && !handle.batching) {
+                        // Viewer does not understand batches, it gets the candidates one by one
+                        for (single in singles ?: SignalingRouting.splitCandidateBatch(text).also { singles = it }) {
+                            handle.session.deliver(single)
+                            sentBytes.add(single.length.toLong())
+                        }
+                    } else {
+                        handle.session.deliver(text)
+                        sentBytes.add(text.length.toLong())
+                    }
+                }
+            }
+        }
+        relayLatency.observe((System.nanoTime() - startNanos) / 1e9)
+    }
+
+    /**
+     * Take the standby messages of [room] for viewer [id] if the camera agrees, otherwise they stay for the next one
+     */
+    private fun claimStandby(id: String, room: String): List<String>? {
+        val standby = standbyCache.remove(room) ?: return null
+        if (listener.onStandbyClaimed(id)) return standby
+        EventLog.v(TAG, "Camera declined standby offer for", id)
+        standbyCache.putIfAbsent(room, standby)
+        return null
+    }
+
+    /**
+     * A new standby offer replaces the cache of the room, candidates are added to it, a withdrawal empties it
+     */
+    private fun cacheStandby(room: String, text: String) {
+        when {
+            SignalingRouting.isWithdrawal(text) -> {
+                EventLog.v(TAG, "Standby offer withdrawn for room", room)
+                standbyCache.remove(room)
+            }
+            SignalingRouting.isCandidate(text) -> {
+                EventLog.v(TAG, "Caching standby message for room", room)
+                standbyCache.compute(room) { _, cached -> (cached ?: emptyList()) + text }
+            }
+            else -> {
+                EventLog.v(TAG, "Caching standby message for room", room)
+                standbyCache[room] = listOf(text)
+            }
+        }
+    }
+
+    private suspend fun deliver(handle: SessionHandle, text: String) {
+        val messages = if (!handle.batching && SignalingRouting.isCandidateBatch(text)) {
+            SignalingRouting.splitCandidateBatch(text)
+        } else {
+            listOf(text)
+        }
+        messages.forEach {
+            handle.session.deliver(it)
+            sentBytes.add(it.length.toLong())
+        }
+    }
+
+    private fun updateConnectionCount() {
+        connections = sessions.size
+        viewerConnections = sessions.count { it.role == SignalingRole.VIEWER }
+        Log.d(TAG, "Connected clients: $connections")
+        outboxStatistics.run {
+            Log.d(TAG, "Outbox depth: $queueDepth max: $queueDepthMax dropped: $messagesDropped evictions: $sessionEvictions")
+        }
+    }
+
+    private fun addSession(
+        session: SignalingSession,
+        id: String,
+        role: SignalingRole,
+        room: String,
+        batching: Boolean
+    ): SessionHandle {
+        Log.v(TAG, "New client connected with ID: $id role: $role room: $room batching: $batching")
+        val handle = SessionHandle(id, session, role, room, batching)
+        synchronized(sessionsLock) {
+            sessions = sessions + handle
+        }
+        updateConnectionCount()
+        listener.onConnectionEstablished(id, role)
+        return handle
+    }
+
+    private fun removeSession(id: String) {
+        val handle: SessionHandle
+        synchronized(sessionsLock) {
+            handle = sessions.find { it.id == id } ?: return
+            sessions = sessions.filter { it !== handle }.toTypedArray()
+        }
+        Log.v(TAG, "Removed client with ID: $id")
+        // The standby offer belongs to the camera's connection, it is useless without it
+        if (handle.role == SignalingRole.CAMERA) standbyCache.remove(handle.room)
+        (handle.session as? LocalSignalingConnection)?.closeIncoming()
+        updateConnectionCount()
+        listener.onConnectionAborted(id, handle.role)
+    }
+}
@@ -0,0 +1,166 @@
+package com.dirk.acamera.signaling
+
+import com.google.gson.Gson
+import com.google.gson.JsonObject
+import com.google.gson.stream.JsonReader
+import com.google.gson.stream.JsonToken
+import java.io.StringReader
+import java.util.*
+
+/**
+ * Role of a client in a signaling room
+ */
+enum class SignalingRole {
+    /** Sends the stream, there is one camera per room */
+    CAMERA,
+    /** Watches the stream */
+    VIEWER
+}
+
+/**
+ * Handshake a client sends as its first message:
+ * {"type":"join","role":"viewer","room":"default","batching":true}
+ * Clients that set "batching" understand batches of ICE candidates.
+ */
+internal data class JoinMessage(val role: SignalingRole, val room: String, val batching: Boolean = false)
+
+/**
+ * Helpers to route messages between the camera and the viewers of a room.
+ *
+ * Messages from a viewer are tagged with a leading "from" field before they reach the camera.
+ * The camera addresses a single viewer with a leading "to" field, without it a message goes to all viewers.
+ * Both fields are always the first ones, so they can be found without parsing the whole message.
+ *
+ * ICE candidates can be sent as a batch: {"type":"candidates","candidates":[{"sdpMid":..,"sdpMLineIndex":..,"sdp":..}]}
+ * Each entry looks like a single candidate message.
+ *
+ * The camera can address [TARGET_STANDBY] instead of a viewer: the offer of a connection it keeps ready for the next
+ * viewer. The relay holds on to it and hands it to the next viewer that joins the room.
+ * A message of type [TYPE_WITHDRAW] to [TARGET_STANDBY] makes the relay forget the offer again.
+ */
+internal object SignalingRouting {
+    const val ROOM_DEFAULT = "default"
+    const val TYPE_CANDIDATES = "candidates"
+    const val TARGET_STANDBY = "standby"
+    const val TYPE_WITHDRAW = "withdraw"
+
+    // JSON strings
+    private const val JSON_TYPE = "type"
+    private const val JSON_TYPE_JOIN = "join"
+    private const val JSON_ROLE = "role"
+    private const val JSON_ROOM = "room"
+    private const val JSON_BATCHING = "batching"
+    private const val MARKER_CANDIDATES = "\"$JSON_TYPE\":\"$TYPE_CANDIDATES\""
+    private const val MARKER_CANDIDATE = "\"sdpMLineIndex\""
+    private const val MARKER_WITHDRAW = "\"$JSON_TYPE\":\"$TYPE_WITHDRAW\""
+    private const val PREFIX_FROM = "{\"from\":\""
+    private const val PREFIX_TO = "{\"to\":\""
+
+    /**
+     * Returns the handshake if [text] is one, null otherwise
+     */
+    fun parseJoin(text: String): JoinMessage? {
+        if (!text.contains(JSON_TYPE_JOIN)) return null
+        try {
+            val reader = JsonReader(StringReader(text))
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) return null
+
+            var type: String? = null
+            var role: String? = null
+            var room: String? = null
+            var batching = false
+            reader.beginObject()
+            while (reader.hasNext()) {
+                when (reader.nextName()) {
+                    JSON_TYPE -> type = reader.nextString()
+                    JSON_ROLE -> role = reader.nextString()
+                    JSON_ROOM -> room = reader.nextString()
+                    JSON_BATCHING -> batching = reader.nextBoolean()
+                    else -> reader.skipValue()
+                }
+            }
+
+            if (type != JSON_TYPE_JOIN) return null
+            val upperRole = role?.uppercase(Locale.ROOT)
+            return JoinMessage(
+                SignalingRole.values().find { it.name == upperRole } ?: SignalingRole.VIEWER,
+                room ?: ROOM_DEFAULT,
+                batching
+            )
+        } catch (error: Exception) {
+            return null
+        }
+    }
+
+    /**
+     * The handshake [join] as a client sends it
+     */
+    fun encodeJoin(join: JoinMessage): String = JsonObject().apply {
+        addProperty(JSON_TYPE, JSON_TYPE_JOIN)
+        addProperty(JSON_ROLE, join.role.name.lowercase(Locale.ROOT))
+        addProperty(JSON_ROOM, join.room)
+        addProperty(JSON_BATCHING, join.batching)
+    }.toString()
+
+    /**
+     * Prepend the sender [id] to the JSON object in [text].
+     * Whitespace in front of the object is dropped, anything else that is no JSON object is returned as it is.
+     */
+    fun withSender(text: String, id: String) = prepend(PREFIX_FROM, text, id)
+
+    /**
+     * Prepend the receiver [id] to the JSON object in [text]
+     */
+    fun withTarget(text: String, id: String) = prepend(PREFIX_TO, text, id)
+
+    /**
+     * Returns the sender id if [text] starts with one
+     */
+    fun readSender(text: String) = read(PREFIX_FROM, text)
+
+    /**
+     * Returns the receiver id if [text] starts with one
+     */
+    fun readTarget(text: String) = read(PREFIX_TO, text)
+
+    /**
+     * Whether [text] looks like a batch of ICE candidates
+     */
+    fun isCandidateBatch(text: String) = text.contains(MARKER_CANDIDATES)
+
+    /**
+     * Whether [text] looks like a withdrawal of the standby offer
+     */
+    fun isWithdrawal(text: String) = text.contains(MARKER_WITHDRAW)
+
+    /**
+     * Whether [text] looks like an ICE candidate or a batch of them
+     */
+    fun isCandidate(text: String) = text.contains(MARKER_CANDIDATE)
+
+    /**
+     * The candidates of a batch as single messages, for clients that don't understand batches.
+     * Returns [text] itself if it is no batch after all.
+     */
+    fun splitCandidateBatch(text: String): List<String> {
+        val candidates = try {
+            Gson().fromJson(text, JsonObject::class.java)?.getAsJsonArray(TYPE_CANDIDATES)
+        } catch (error: Exception) {
+            null
+        } ?: return listOf(text)
+        return candidates.map { it.toString() }
+    }
+
+    private fun prepend(prefix: String, text: String, id: String): String {
+        val start = text.indexOfFirst { !it.isWhitespace() }
+        if (start < 0 || text[start] != '{') return text
+        val rest = text.substring(start + 1).trimStart()
+        return if (rest.startsWith("}")) "$prefix$id\"$rest" else "$prefix$id\",$rest"
+    }
+
+    private fun read(prefix: String, text: String): String? {
+        if (!text.startsWith(prefix)) return null
+        val end = text.indexOf('"', prefix.length)
+        return if (end < 0) null else text.substring(prefix.length, end)
+    }
+}
@@ -2,21 +2,26 @@ package com.dirk.acamera.signaling
 
 import android.content.Context
 import android.util.Log
+import com.dirk.acamera.utils.EventLog
+import com.dirk.acamera.utils.KeyStoreCache
+import com.dirk.acamera.utils.Metrics
+import com.dirk.acamera.utils.MetricsRegistry
+import com.dirk.acamera.utils.StartupTimer
 import com.dirk.acamera.utils.buildKeyStore
-import com.dirk.acamera.utils.saveToFile
 import io.ktor.application.*
-import io.ktor.http.cio.websocket.*
-import io.ktor.http.content.*
+import io.ktor.http.*
 import io.ktor.network.tls.extensions.*
+import io.ktor.response.*
 import io.ktor.routing.*
 import io.ktor.server.engine.*
-import io.ktor.server.netty.*
 import io.ktor.websocket.*
 import kotlinx.coroutines.*
 import java.io.*
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.Socket
 import java.security.*
-import java.time.Duration
-import java.util.*
+import java.security.cert.X509Certificate
 import javax.net.ssl.*
 import kotlin.coroutines.CoroutineContext
 
@@ -25,22 +30,47 @@ private const val TAG = "aCamera SignalingServer"
 class SignalingServer(
     private val listener: SignalingServerListener,
     private val context: Context,
-    private val port: Int = SERVER_PORT_DEFAULT
+    private val port: Int = SERVER_PORT_DEFAULT,
+    private val outboxCapacity: Int = OUTBOX_CAPACITY_DEFAULT,
+    private val outboxOverflowPolicy: OutboxOverflowPolicy = OutboxOverflowPolicy.DROP_OLDEST,
+    private val maxMessageSize: Int = MESSAGE_SIZE_MAX_DEFAULT,
+    private val sessionMemoryBudget: Long = SESSION_MEMORY_BUDGET_DEFAULT,
+    private val rateLimits: RateLimits = RateLimits(),
+    private val tlsTuning: TlsTuning = TlsTuning(),
+    val engine: SignalingEngine = SignalingEngine.NETTY,
+    private val threading: ServerThreading = ServerThreading.auto(),
+    private val startupTimer: StartupTimer = StartupTimer()
 ) : CoroutineScope {
 
     companion object {
         private const val ASSETS_FOLDER = "web"
+        private const val ASSETS_MANIFEST = "web.manifest"
 
         const val SERVER_PORT_DEFAULT = 8443
         private const val SERVER_STOP_GRACE_MILLIS = 5000L
         private const val SERVER_STOP_TIMEOUT_MILLIS = 10000L
+        private const val SERVER_PROBE_ATTEMPTS = 50
+        private const val SERVER_PROBE_TIMEOUT_MILLIS = 1000
+        private const val SERVER_PROBE_DELAY_MILLIS = 20L
 
         const val SOCKET_PATH = "/socket"
         private const val SOCKET_PING_PERIOD_SECONDS = 60L
         private const val SOCKET_TIMEOUT_SECONDS = 15L
-        private const val SOCKET_MAX_FRAME_SIZE = Long.MAX_VALUE
         private const val SOCKET_MASKING = false
 
+        // Phases of start() recorded by the startup timer
+        const val PHASE_ASSETS = "assets"
+        const val PHASE_KEYSTORE = "keystore"
+        const val PHASE_BIND = "bind"
+        val STARTUP_PHASES = setOf(PHASE_ASSETS, PHASE_KEYSTORE, PHASE_BIND)
+
+        const val METRICS_PATH = "/metrics"
+        const val LOG_PATH = "/log"
+
+        const val OUTBOX_CAPACITY_DEFAULT = SignalingRelay.OUTBOX_CAPACITY_DEFAULT
+        const val MESSAGE_SIZE_MAX_DEFAULT = SignalingRelay.MESSAGE_SIZE_MAX_DEFAULT
+        const val SESSION_MEMORY_BUDGET_DEFAULT = SignalingRelay.SESSION_MEMORY_BUDGET_DEFAULT
+
         const val CERT_ALIAS = "aCamera"
         private const val CERT_PASS = "android"
         private const val CERT_KEY_SIZE = 256
@@ -50,19 +80,7 @@ class SignalingServer(
         private const val KEYSTORE_FILE_NAME = "ssl.keystore"
         const val KEYSTORE_PASS = "android"
 
-        //val ks = io.ktor.network.tls.certificates.buildKeyStore {  }
-
-        // FIXME: Don't create a new certificate every time the app is restarted
-        val KEYSTORE = buildKeyStore {
-            certificate(CERT_ALIAS) {
-                hash = CERT_HASH_ALGORITHM
-                sign = CERT_SIGNATURE_ALGORITHM
-                keySizeInBits = CERT_KEY_SIZE
-                password = CERT_PASS
-                daysValid = CERT_DAYS_VALID
-            }
-        }
-
+        lateinit var keyStore: KeyStore
         lateinit var sslContext: SSLContext
         lateinit var x509TrustManager: X509TrustManager
     }
@@ -74,94 +92,151 @@ class SignalingServer(
     }
 
     var state = State.INITIALIZING
-    var connections = 0
+    val tlsStatistics = TlsStatistics()
 
-    private var sessions = Collections.synchronizedMap(mutableMapOf<String, WebSocketServerSession>())
-    private var resourcesReady = false
+    // Metrics of this server, exposed together with the process metrics at METRICS_PATH
+    val metrics = MetricsRegistry()
+    private val relay = SignalingRelay(
+        listener,
+        outboxCapacity,
+        outboxOverflowPolicy,
+        metrics,
+        maxMessageSize,
+        sessionMemoryBudget,
+        rateLimits,
+        SOCKET_PING_PERIOD_SECONDS * 1000,
+        SOCKET_TIMEOUT_SECONDS * 1000
+    )
+    val connections get() = relay.connections
+    val viewerConnections get() = relay.viewerConnections
+    val outboxStatistics get() = relay.outboxStatistics
+    val memoryStatistics get() = relay.memoryStatistics
+    val rateLimitStatistics get() = relay.rateLimitStatistics
 
     private val job = Job()
+    // Startup and shutdown block on files and sockets, the shared IO threads are made for that
     override val coroutineContext: CoroutineContext
         get() = Dispatchers.IO + job
-    private val server: NettyApplicationEngine
+    private var server: ApplicationEngine? = null
+
+    // Web client is kept in memory, loading it does not hold up the server start
+    private val assetCache = WebAssetCache(context.assets, ASSETS_FOLDER, ASSETS_MANIFEST)
+    private lateinit var assetsLoaded: Job
 
     init {
-        Log.d(TAG, "Creating server instance...")
-        server = createServer()
-        Log.d(TAG, "Creating server instance done")
+        metrics.counter("acamera_tls_handshakes_total", "Successful TLS handshakes") { tlsStatistics.handshakesTotal }
+        metrics.counter("acamera_tls_handshakes_resumed_total", "TLS handshakes that resumed a session") { tlsStatistics.handshakesResumed }
+        metrics.counter("acamera_tls_handshakes_failed_total", "Failed TLS handshakes") { tlsStatistics.handshakesFailed }
     }
 
-    private fun createServer(): NettyApplicationEngine {
-        if (!resourcesReady) copyWebResources()
+    private fun loadKeyStore(keyStoreFile: File): KeyStore {
+        // The key pair and certificate are only generated when there is no valid keystore yet
+        return KeyStoreCache(keyStoreFile, KEYSTORE_PASS, CERT_ALIAS) {
+            buildKeyStore {
+                certificate(CERT_ALIAS) {
+                    hash = CERT_HASH_ALGORITHM
+                    sign = CERT_SIGNATURE_ALGORITHM
+                    keySizeInBits = CERT_KEY_SIZE
+                    password = CERT_PASS
+                    daysValid = CERT_DAYS_VALID
+                }
+            }
+        }.load()
+    }
 
-        Log.d(TAG, "Server keystore type: ${KEYSTORE.type}")
-        Log.d(TAG, "Saving certificate to file '$KEYSTORE_FILE_NAME'")
-        val keyStoreFile = File(context.filesDir, KEYSTORE_FILE_NAME)
-        KEYSTORE.saveToFile(keyStoreFile, KEYSTORE_PASS)
-        Log.d(TAG, "Saving certificate done")
+    private fun createServer(): ApplicationEngine {
+        Log.d(TAG, "Server keystore type: ${keyStore.type}")
 
         val tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
-        tmf.init(KEYSTORE)
+        tmf.init(keyStore)
         sslContext = SSLContext.getInstance("TLS")
         sslContext.init(null, tmf.trustManagers, null)
         x509TrustManager = tmf.trustManagers.first { it is X509TrustManager } as X509TrustManager
 
-        return embeddedServer(Netty, applicationEngineEnvironment {
-            sslConnector(
-                KEYSTORE,
-                CERT_ALIAS,
-                { KEYSTORE_PASS.toCharArray() },
-                { CERT_PASS.toCharArray() }
-            ) {
+        // TLS is put in front of the connector by TlsTuningHandler, with a session cache configured right here
+        val serverSslContext = if (engine.supportsTls) {
+            val key = keyStore.getKey(CERT_ALIAS, CERT_PASS.toCharArray()) as PrivateKey
+            val chain = keyStore.getCertificateChain(CERT_ALIAS).map { it as X509Certificate }
+            Log.d(TAG, "TLS session cache size: ${tlsTuning.sessionCacheSize} timeout: ${tlsTuning.sessionTimeoutSeconds}s")
+            tlsTuning.buildServerContext(key, chain)
+        } else {
+            Log.w(TAG, "Engine $engine does not support TLS, serving plain http")
+            null
+        }
+
+        val environment = applicationEngineEnvironment {
+            connector {
                 // TODO: Try different ports in case one is already in use
                 port = this@SignalingServer.port
-                keyStorePath = keyStoreFile.absoluteFile
             }
 
             module {
-                // Web socket is used for local and remote signaling clients
+                // Web socket is used by remote signaling clients
+                // Sessions are raw, the relay reassembles messages and pings clients itself
                 install(WebSockets) {
-                    pingPeriod = Duration.ofSeconds(SOCKET_PING_PERIOD_SECONDS)
-                    timeout = Duration.ofSeconds(SOCKET_TIMEOUT_SECONDS)
-                    maxFrameSize = SOCKET_MAX_FRAME_SIZE
+                    // A frame is never bigger than a message
+                    maxFrameSize = maxMessageSize.toLong()
                     masking = SOCKET_MASKING
                 }
 
                 // Static content can be accessed by the remote client
                 routing {
-                    webSocket(path = SOCKET_PATH) {
-                        // Add session
-                        val id = UUID.randomUUID().toString()
-                        addSession(this, id)
-                        try {
-                            for (data in incoming) {
-                                if (data is Frame.Text) {
-                                    val clients = sessions.filter { it.key != id }
-                                    val text = data.readText()
-                                    clients.forEach {
-                                        Log.v(TAG, "Sending to: ${it.key}")
-                                        Log.v(TAG, "Sending: $text")
-                                        it.value.send(text)
-                                    }
-                                }
-                            }
-                        } finally {
-                            removeSession(id)
+                    webSocketRaw(path = SOCKET_PATH) {
+                        relay.serve(this)
+                    }
+                    get(METRICS_PATH) {
+                        val text = buildString {
+                            metrics.writeTo(this)
+                            Metrics.writeTo(this)
                         }
+                        call.respondText(text, ContentType.parse(MetricsRegistry.CONTENT_TYPE))
                     }
-                    static("") {
-                        files(context.filesDir)
+                    get(LOG_PATH) {
+                        call.respondText(buildString { EventLog.writeTo(this) }, ContentType.Text.Plain)
+                    }
+                    get("/{path...}") {
+                        assetsLoaded.join()
+                        assetCache.respond(call, call.parameters.getAll("path")?.joinToString("/") ?: "")
                     }
-                    default(File(context.filesDir, "index.html"))
                 }
             }
-        })
+        }
+
+        Log.d(TAG, "Server threads: $threading")
+        return engine.create(environment, threading) {
+            serverSslContext?.let {
+                val tlsHandler = TlsTuningHandler(it, tlsTuning, tlsStatistics)
+                configureBootstrap = { handler(tlsHandler) }
+            }
+        }
     }
 
     fun start() = launch {
         Log.d(TAG, "Running server thread...")
+
+        // Loading the web client does not have to be done before the server runs,
+        // requests for it wait until it is
+        assetsLoaded = launch {
+            try {
+                startupTimer.measure(PHASE_ASSETS) { assetCache.load() }
+            } catch (error: IOException) {
+                Log.e(TAG, "Loading web assets failed", error)
+            }
+        }
+
         try {
-            server.start(wait = false)
-            // FIXME: This does not tell if server is actually running
+            // Loading the keystore and building the server happens here, off the main thread
+            val keyStoreFile = File(context.filesDir, KEYSTORE_FILE_NAME)
+            keyStore = startupTimer.measure(PHASE_KEYSTORE) { loadKeyStore(keyStoreFile) }
+
+            startupTimer.measure(PHASE_BIND) {
+                Log.d(TAG, "Creating server instance...")
+                val engine = createServer()
+                server = engine
+                Log.d(TAG, "Creating server instance done")
+                engine.start(wait = false)
+                awaitAccepting()
+            }
             Log.d(TAG, "Running server thread success")
             state = State.RUNNING
             listener.onServerRunning()
@@ -172,45 +247,56 @@ class SignalingServer(
         }
     }
 
-    private fun copyWebResources() = launch(Dispatchers.IO) {
-        Log.d(TAG, "Copying web resources started...")
-        val files = context.assets.list(ASSETS_FOLDER)
-
-        files?.forEach { path ->
-            Log.v(TAG, "Copy resource: $path")
-            val input = context.assets.open("$ASSETS_FOLDER/$path")
-            val outFile = File(context.filesDir, path)
-            val outStream = FileOutputStream(outFile)
-            outStream.write(input.readBytes())
-            outStream.close()
-            input.close()
+    /**
+     * Only returns once the port actually accepts connections.
+     * With TLS the probe completes a handshake, a bare connection would only be counted as a failed one.
+     * The probe's handshake is counted like any other.
+     */
+    private suspend fun awaitAccepting() {
+        val address = InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+        repeat(SERVER_PROBE_ATTEMPTS) {
+            try {
+                val socket = if (engine.supportsTls) sslContext.socketFactory.createSocket() else Socket()
+                socket.use {
+                    it.connect(address, SERVER_PROBE_TIMEOUT_MILLIS)
+                    it.soTimeout = SERVER_PROBE_TIMEOUT_MILLIS
+                    (it as? SSLSocket)?.startHandshake()
+                }
+                return
+            } catch (error: IOException) {
+                delay(SERVER_PROBE_DELAY_MILLIS)
+            }
         }
-
-        resourcesReady = true
-        Log.d(TAG, "Copying web resources done")
-    }
-
-    private fun updateConnectionCount() {
-        connections = sessions.size
-        Log.d(TAG, "Connected clients: $connections")
+        throw IOException("Server does not accept connections on port $port")
     }
 
-    private fun addSession(session: WebSocketServerSession, id: String) {
-        Log.v(TAG, "New client connected with ID: $id")
-        sessions[id] = session
-        updateConnectionCount()
-        listener.onConnectionEstablished()
-    }
+    /**
+     * Connect a signaling client running in the same process.
+     * The client joins like a remote one but its messages don't go through TLS and the socket.
+     */
+    fun connectLocal(
+        role: SignalingRole = SignalingRole.CAMERA,
+        room: String = SignalingRouting.ROOM_DEFAULT
+    ) = relay.connectLocal(role, room)
 
-    private fun removeSession(id: String) {
-        Log.v(TAG, "Removing client with ID: $id")
-        sessions.remove(id)
-        updateConnectionCount()
-        listener.onConnectionAborted()
-    }
+    /**
+     * IDs of the viewers currently connected to [room]
+     */
+    fun getViewerIds(room: String = SignalingRouting.ROOM_DEFAULT) = relay.getViewerIds(room)
 
     fun stop() = launch {
-        server.stop(gracePeriodMillis = SERVER_STOP_GRACE_MILLIS, timeoutMillis = SERVER_STOP_TIMEOUT_MILLIS)
+        tlsStatistics.run {
+            Log.d(TAG, "TLS handshakes: $handshakesTotal resumed: $handshakesResumed failed: $handshakesFailed ratio: $resumptionRatio")
+        }
+        memoryStatistics.run {
+            Log.d(TAG, "Session memory max: $bytesBufferedMax bytes, rejected sessions: $sessionsRejected")
+        }
+        rateLimitStatistics.run {
+            Log.d(TAG, "Messages throttled: $messagesThrottled dropped: $messagesDropped, clients turned away: $sessionsRejected")
+        }
+        Log.d(TAG, "Web assets sent: ${assetCache.responseBytesSent} bytes, not modified: ${assetCache.responsesNotModified}")
+        relay.closeLocalConnections()
+        server?.stop(gracePeriodMillis = SERVER_STOP_GRACE_MILLIS, timeoutMillis = SERVER_STOP_TIMEOUT_MILLIS)
         job.complete()
     }
 }
@@ -3,6 +3,11 @@ package com.dirk.acamera.signaling
 interface SignalingServerListener {
     fun onServerRunning()
     fun onServerFailed()
-    fun onConnectionEstablished()
-    fun onConnectionAborted()
+    fun onConnectionEstablished(id: String, role: SignalingRole)
+    /**
+     * Viewer [id] may get the camera's standby offer, called right before [onConnectionEstablished].
+     * Returns false if the camera can't take the viewer, the offer is not sent then and kept for the next one.
+     */
+    fun onStandbyClaimed(id: String): Boolean
+    fun onConnectionAborted(id: String, role: SignalingRole)
 }
@@ -0,0 +1,168 @@
+package com.dirk.acamera.signaling
+
+import io.ktor.http.cio.websocket.*
+import io.ktor.websocket.*
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.ReceiveChannel
+import kotlinx.coroutines.launch
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Client session known to the signaling server
+ */
+interface SignalingSession {
+    /**
+     * Deliver [text] from the server to the client of this session
+     */
+    suspend fun deliver(text: String)
+}
+
+/**
+ * What happens when a message is delivered to a session whose outbox is full
+ */
+enum class OutboxOverflowPolicy {
+    /** Drop the oldest queued message to make room */
+    DROP_OLDEST,
+    /** Disconnect the slow client */
+    DISCONNECT
+}
+
+/**
+ * Outbox counters shared by all sessions of a server
+ */
+class OutboxStatistics {
+    internal val depth = AtomicInteger()
+    internal val depthMax = AtomicInteger()
+    internal val dropped = AtomicLong()
+    internal val evictions = AtomicLong()
+
+    /** Messages currently queued in all outboxes */
+    val queueDepth get() = depth.get()
+    /** Highest number of messages queued in a single outbox */
+    val queueDepthMax get() = depthMax.get()
+    /** Messages dropped because an outbox was full */
+    val messagesDropped get() = dropped.get()
+    /** Clients disconnected because their outbox was full */
+    val sessionEvictions get() = evictions.get()
+}
+
+/**
+ * Session of a (remote) client connected through the web socket.
+ * Messages are queued in a bounded outbox that is written to the socket by its own coroutine,
+ * so a slow client does not hold up delivery to the others.
+ * Queued messages count against the session's [memory] budget, just like the outbox capacity.
+ */
+internal class WebSocketSignalingSession(
+    private val socket: WebSocketServerSession,
+    capacity: Int,
+    private val overflowPolicy: OutboxOverflowPolicy,
+    private val statistics: OutboxStatistics,
+    private val memory: SessionMemory
+) : SignalingSession {
+
+    private val outbox = Channel<String>(capacity)
+    private val depth = AtomicInteger()
+    private val isEvicted = AtomicBoolean()
+
+    init {
+        socket.launch {
+            for (text in outbox) {
+                onDequeued(text)
+                socket.send(text)
+            }
+        }
+    }
+
+    override suspend fun deliver(text: String) {
+        if (tryQueue(text)) return
+        if (outbox.isClosedForSend) return
+
+        when (overflowPolicy) {
+            OutboxOverflowPolicy.DROP_OLDEST -> {
+                // Drop as many as it takes to make room
+                while (true) {
+                    val oldest = outbox.tryReceive().getOrNull() ?: break
+                    onDequeued(oldest)
+                    statistics.dropped.incrementAndGet()
+                    if (tryQueue(text)) return
+                }
+                statistics.dropped.incrementAndGet()
+            }
+            OutboxOverflowPolicy.DISCONNECT -> evict()
+        }
+    }
+
+    private fun tryQueue(text: String): Boolean {
+        if (!memory.tryReserve(text.length.toLong())) return false
+        if (!outbox.trySend(text).isSuccess) {
+            memory.release(text.length.toLong())
+            return false
+        }
+        statistics.depth.incrementAndGet()
+        statistics.depthMax.accumulateAndGet(depth.incrementAndGet(), ::maxOf)
+        return true
+    }
+
+    private fun onDequeued(text: String) {
+        depth.decrementAndGet()
+        statistics.depth.decrementAndGet()
+        memory.release(text.length.toLong())
+    }
+
+    private fun evict() {
+        if (!isEvicted.compareAndSet(false, true)) return
+        statistics.evictions.incrementAndGet()
+        close()
+        socket.launch {
+            socket.close(CloseReason(CloseReason.Codes.TRY_AGAIN_LATER, "Client is too slow"))
+        }
+    }
+
+    /**
+     * Stop writing to the socket, queued messages are discarded
+     */
+    fun close() {
+        outbox.cancel()
+        statistics.depth.addAndGet(-depth.getAndSet(0))
+        memory.releaseAll()
+    }
+}
+
+/**
+ * Session of a client running in the same process as the server.
+ * Messages are passed through memory instead of a TLS web socket.
+ */
+class LocalSignalingConnection internal constructor(
+    private val onSend: suspend (String) -> Unit,
+    private val onClose: () -> Unit
+) : SignalingSession {
+
+    companion object {
+        private const val QUEUE_CAPACITY = 64
+    }
+
+    private val toClient = Channel<String>(QUEUE_CAPACITY)
+
+    /**
+     * Messages from the server to the client
+     */
+    val incoming: ReceiveChannel<String> get() = toClient
+
+    override suspend fun deliver(text: String) = toClient.send(text)
+
+    /**
+     * Send [text] from the client to the server
+     */
+    suspend fun send(text: String) = onSend(text)
+
+    /**
+     * Leave the server, the server closes [incoming] as well
+     */
+    fun close() = onClose()
+
+    internal fun closeIncoming() {
+        toClient.close()
+    }
+}
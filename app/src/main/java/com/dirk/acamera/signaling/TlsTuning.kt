@@ -0,0 +1,121 @@
+package com.dirk.acamera.signaling
+
+import io.netty.channel.Channel
+import io.netty.channel.ChannelHandlerContext
+import io.netty.channel.ChannelInboundHandlerAdapter
+import io.netty.handler.ssl.SslContext
+import io.netty.handler.ssl.SslContextBuilder
+import io.netty.handler.ssl.SslProvider
+import java.security.PrivateKey
+import java.security.cert.X509Certificate
+import java.util.concurrent.atomic.AtomicLong
+import javax.net.ssl.SSLEngine
+
+/**
+ * TLS handshake counters of the server
+ */
+class TlsStatistics {
+    internal val handshakes = AtomicLong()
+    internal val resumed = AtomicLong()
+    internal val failed = AtomicLong()
+
+    /** Successful handshakes, full and resumed */
+    val handshakesTotal get() = handshakes.get()
+    /** Handshakes that resumed an earlier session */
+    val handshakesResumed get() = resumed.get()
+    /** Handshakes that failed */
+    val handshakesFailed get() = failed.get()
+    /** Share of successful handshakes that were resumed */
+    val resumptionRatio get() = handshakes.get().let { if (it == 0L) 0.0 else resumed.get().toDouble() / it }
+}
+
+/**
+ * How TLS connections of the server are tuned
+ */
+class TlsTuning(
+    /** Number of sessions the server keeps for resumption */
+    val sessionCacheSize: Int = SESSION_CACHE_SIZE_DEFAULT,
+    /** How long a session can be resumed */
+    val sessionTimeoutSeconds: Int = SESSION_TIMEOUT_SECONDS_DEFAULT,
+    /** Announce HTTP/1.1 through ALPN */
+    val alpn: Boolean = false
+) {
+    companion object {
+        const val SESSION_CACHE_SIZE_DEFAULT = 64
+        const val SESSION_TIMEOUT_SECONDS_DEFAULT = 24 * 60 * 60
+        private const val ALPN_HTTP_1_1 = "http/1.1"
+
+        /**
+         * Cheap suites for the ECDSA key of the server, in the order the server prefers them.
+         * Suites the engine does not support are skipped, all other enabled suites follow.
+         */
+        private val PREFERRED_CIPHER_SUITES = listOf(
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384"
+        )
+    }
+
+    /**
+     * Server TLS context for [key] and its [certificateChain].
+     * Its session cache is sized and timed here, once, before the first connection is accepted.
+     */
+    internal fun buildServerContext(key: PrivateKey, certificateChain: List<X509Certificate>): SslContext =
+        SslContextBuilder.forServer(key, certificateChain)
+            .sslProvider(SslProvider.JDK)
+            .sessionCacheSize(sessionCacheSize.toLong())
+            .sessionTimeout(sessionTimeoutSeconds.toLong())
+            .build()
+
+    internal fun apply(engine: SSLEngine) {
+        val enabled = engine.enabledCipherSuites.toList()
+        val preferred = PREFERRED_CIPHER_SUITES.filter { it in engine.supportedCipherSuites }
+        engine.sslParameters = engine.sslParameters.apply {
+            cipherSuites = (preferred + (enabled - preferred)).toTypedArray()
+            useCipherSuitesOrder = true
+            if (alpn) applicationProtocols = arrayOf(ALPN_HTTP_1_1)
+        }
+    }
+}
+
+/**
+ * Netty handler on the server's parent channel that puts TLS in front of every accepted connection.
+ * ktor serves the connector as plain http, the TLS handler comes from [sslContext] so the server owns its session
+ * cache. Each engine is tuned before the handshake starts and the handler counts how the handshake went.
+ * A handshake resumed an earlier session if that session was created before the connection was accepted.
+ */
+internal class TlsTuningHandler(
+    private val sslContext: SslContext,
+    private val tuning: TlsTuning,
+    private val statistics: TlsStatistics
+) : ChannelInboundHandlerAdapter() {
+
+    companion object {
+        private const val SSL_HANDLER_NAME = "ssl"
+    }
+
+    /**
+     * Parent channel: [msg] is an accepted connection, nothing was read from it yet
+     */
+    override fun channelRead(ctx: ChannelHandlerContext, msg: Any) {
+        if (msg is Channel) {
+            val acceptedAtMillis = System.currentTimeMillis()
+            val sslHandler = sslContext.newHandler(msg.alloc())
+            val engine = sslHandler.engine()
+            tuning.apply(engine)
+            sslHandler.handshakeFuture().addListener { future ->
+                if (future.isSuccess) {
+                    statistics.handshakes.incrementAndGet()
+                    if (engine.session.creationTime < acceptedAtMillis) statistics.resumed.incrementAndGet()
+                } else {
+                    statistics.failed.incrementAndGet()
+                }
+            }
+            msg.pipeline().addFirst(SSL_HANDLER_NAME, sslHandler)
+        }
+        ctx.fireChannelRead(msg)
+    }
+}
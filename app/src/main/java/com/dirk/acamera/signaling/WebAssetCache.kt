@@ -0,0 +1,139 @@
+package com.dirk.acamera.signaling
+
+import android.content.res.AssetManager
+import android.util.Log
+import io.ktor.application.*
+import io.ktor.http.*
+import io.ktor.response.*
+import java.io.ByteArrayOutputStream
+import java.io.FileNotFoundException
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.GZIPOutputStream
+
+private const val TAG = "aCamera WebAssetCache"
+
+/**
+ * Keeps the web client in memory, together with compressed variants of every file.
+ * Files are read straight from the APK, nothing is copied to the app's storage.
+ *
+ * Files are answered with a strong ETag and Cache-Control, a matching If-None-Match gets a 304.
+ * ETags come from the content hashes in the manifest generated at build time ('generateWebManifest'),
+ * files missing from the manifest are hashed when they are loaded.
+ * The gzip variant is sent if the browser accepts it and it is smaller, the original otherwise.
+ * Each variant has its own ETag ('-gz' suffix for gzip), responses vary by Accept-Encoding.
+ */
+internal class WebAssetCache(
+    private val assets: AssetManager,
+    private val folder: String,
+    private val manifest: String
+) {
+
+    companion object {
+        const val INDEX = "index.html"
+        private const val ENCODING_GZIP = "gzip"
+        private const val ETAG_SUFFIX_GZIP = "-gz"
+        private const val CACHE_CONTROL_INDEX = "no-cache"
+        private const val CACHE_CONTROL_ASSETS = "public, max-age=3600"
+    }
+
+    class Variant(val etag: String, val bytes: ByteArray)
+
+    class Asset(
+        val contentType: ContentType,
+        val cacheControl: String,
+        val identity: Variant,
+        val gzip: Variant?
+    )
+
+    private var cache = emptyMap<String, Asset>()
+
+    // Statistics
+    private val bytesSent = AtomicLong()
+    private val notModified = AtomicLong()
+    val responseBytesSent get() = bytesSent.get()
+    val responsesNotModified get() = notModified.get()
+
+    /**
+     * Read all files from the assets folder once
+     */
+    fun load() {
+        Log.d(TAG, "Loading web assets...")
+        val hashes = loadManifest()
+        val files = assets.list(folder)?.toList() ?: emptyList()
+        cache = files.associateWith { path -> loadAsset(path, hashes[path]) }
+        Log.d(TAG, "Loading web assets done, ${cache.size} files")
+    }
+
+    /**
+     * Content hashes by file name, one 'name=hash' per line
+     */
+    private fun loadManifest(): Map<String, String> = try {
+        assets.open(manifest).bufferedReader().useLines { lines ->
+            lines.mapNotNull { line ->
+                val separator = line.indexOf('=')
+                if (separator > 0) line.substring(0, separator) to line.substring(separator + 1).trim() else null
+            }.toMap()
+        }
+    } catch (error: FileNotFoundException) {
+        Log.w(TAG, "No web asset manifest found, hashing assets instead")
+        emptyMap()
+    }
+
+    private fun loadAsset(path: String, hash: String?): Asset {
+        val bytes = assets.open("$folder/$path").use { it.readBytes() }
+        val gzip = gzip(bytes)
+        Log.v(TAG, "Loaded asset: $path (${bytes.size} bytes, gzip ${gzip.size} bytes)")
+
+        val etag = hash ?: hash(bytes)
+        return Asset(
+            contentType = ContentType.defaultForFilePath(path),
+            cacheControl = if (path == INDEX) CACHE_CONTROL_INDEX else CACHE_CONTROL_ASSETS,
+            identity = Variant("\"$etag\"", bytes),
+            // Only keep the compressed variant if it is actually smaller
+            gzip = gzip.takeIf { it.size < bytes.size }?.let { Variant("\"$etag$ETAG_SUFFIX_GZIP\"", it) }
+        )
+    }
+
+    private fun gzip(bytes: ByteArray): ByteArray {
+        val output = ByteArrayOutputStream(bytes.size / 2)
+        GZIPOutputStream(output).use { it.write(bytes) }
+        return output.toByteArray()
+    }
+
+    private fun hash(bytes: ByteArray): String {
+        val digest = MessageDigest.getInstance("SHA-256").digest(bytes)
+        return digest.take(16).joinToString(separator = "") { "%02x".format(it) }
+    }
+
+    /**
+     * Answer [call] with the asset at [path], or 404 if there is none
+     */
+    suspend fun respond(call: ApplicationCall, path: String) {
+        val asset = cache[path.ifEmpty { INDEX }]
+        if (asset == null) {
+            call.respond(HttpStatusCode.NotFound)
+            return
+        }
+
+        val isGzipAccepted = asset.gzip != null && parseHeaderValue(call.request.headers[HttpHeaders.AcceptEncoding])
+            .any { it.quality > 0.0 && it.value.trim().equals(ENCODING_GZIP, ignoreCase = true) }
+        val variant = if (isGzipAccepted) asset.gzip!! else asset.identity
+
+        call.response.header(HttpHeaders.ETag, variant.etag)
+        call.response.header(HttpHeaders.CacheControl, asset.cacheControl)
+        call.response.header(HttpHeaders.Vary, HttpHeaders.AcceptEncoding)
+
+        // Browser already has this version?
+        val ifNoneMatch = call.request.headers[HttpHeaders.IfNoneMatch]
+        if (ifNoneMatch != null && (ifNoneMatch.trim() == "*" || variant.etag in ifNoneMatch)) {
+            notModified.incrementAndGet()
+            call.respond(HttpStatusCode.NotModified)
+            return
+        }
+
+        if (isGzipAccepted) call.response.header(HttpHeaders.ContentEncoding, ENCODING_GZIP)
+        bytesSent.addAndGet(variant.bytes.size.toLong())
+        call.respondBytes(variant.bytes, asset.contentType)
+    }
+}
@@ -0,0 +1,194 @@
+package com.dirk.acamera.utils
+
+import android.util.Log
+import java.text.SimpleDateFormat
+import java.util.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import java.util.concurrent.locks.LockSupport
+
+/**
+ * Event logger for the hot paths of signaling and capture.
+ *
+ * Entries go into a preallocated ring buffer. Their arguments are kept by reference and only formatted when the
+ * ring is dumped or mirrored to logcat, which happens on a background thread.
+ * The mirror thread collects entries for [MIRROR_PERIOD_MILLIS] and sleeps until the next entry to mirror arrives.
+ * Numbers have their own entries, so they are not boxed to be stored.
+ * Entries below [level] are discarded before anything is stored, so a disabled verbose entry costs a comparison.
+ * Arguments stay referenced until the ring wraps around, don't pass anything big that is otherwise short-lived.
+ */
+object EventLog {
+    const val CAPACITY = 256
+    private const val NUMBERS = 3
+    private const val MIRROR_PERIOD_MILLIS = 100L
+    private const val TIME_FORMAT = "HH:mm:ss.SSS"
+
+    /** Entries below this level are discarded */
+    @Volatile
+    @JvmStatic
+    var level = Log.DEBUG
+
+    /** Entries at or above this level are also written to logcat */
+    @Volatile
+    @JvmStatic
+    var mirrorLevel = Log.DEBUG
+
+    // One slot per entry, the sequence number is written last so readers can tell complete entries
+    private val sequence = AtomicLong()
+    private val stamps = AtomicLongArray(CAPACITY).apply { for (i in 0 until CAPACITY) set(i, -1) }
+    private val times = LongArray(CAPACITY)
+    private val levels = IntArray(CAPACITY)
+    private val tags = arrayOfNulls<String>(CAPACITY)
+    private val messages = arrayOfNulls<String>(CAPACITY)
+    private val firstArgs = arrayOfNulls<Any>(CAPACITY)
+    private val secondArgs = arrayOfNulls<Any>(CAPACITY)
+    private val numberCounts = IntArray(CAPACITY)
+    private val numbers = LongArray(CAPACITY * NUMBERS)
+
+    private val mirror = lazy { Thread(::mirrorLoop, "aCamera EventLog").apply { isDaemon = true; start() } }
+    private val mirrorIdle = AtomicBoolean()
+    private var mirrored = 0L
+
+    @JvmStatic
+    fun isLoggable(level: Int) = level >= this.level
+
+    @JvmStatic
+    @JvmOverloads
+    fun v(tag: String, message: String, first: Any? = null, second: Any? = null) = log(Log.VERBOSE, tag, message, first, second)
+
+    @JvmStatic
+    @JvmOverloads
+    fun d(tag: String, message: String, first: Any? = null, second: Any? = null) = log(Log.DEBUG, tag, message, first, second)
+
+    @JvmStatic
+    fun d(tag: String, message: String, first: Int, second: Int, third: Int) = log(Log.DEBUG, tag, message, first, second, third)
+
+    /**
+     * Store an entry, it reads "[message] [first] [second]" once formatted
+     */
+    @JvmStatic
+    fun log(level: Int, tag: String, message: String, first: Any?, second: Any?) = store(level, tag, message) { slot ->
+        firstArgs[slot] = first
+        secondArgs[slot] = second
+        numberCounts[slot] = 0
+    }
+
+    /**
+     * Store an entry without boxing its numbers, it reads "[message] [first] [second] [third]" once formatted
+     */
+    @JvmStatic
+    fun log(level: Int, tag: String, message: String, first: Int, second: Int, third: Int) = store(level, tag, message) { slot ->
+        firstArgs[slot] = null
+        secondArgs[slot] = null
+        numbers[slot * NUMBERS] = first.toLong()
+        numbers[slot * NUMBERS + 1] = second.toLong()
+        numbers[slot * NUMBERS + 2] = third.toLong()
+        numberCounts[slot] = NUMBERS
+    }
+
+    private inline fun store(level: Int, tag: String, message: String, arguments: (slot: Int) -> Unit) {
+        if (level < this.level) return
+        val number = sequence.getAndIncrement()
+        val slot = (number % CAPACITY).toInt()
+        stamps.set(slot, -1)
+        times[slot] = System.currentTimeMillis()
+        levels[slot] = level
+        tags[slot] = tag
+        messages[slot] = message
+        arguments(slot)
+        stamps.set(slot, number)
+        if (level >= mirrorLevel) wakeMirror()
+    }
+
+    private fun wakeMirror() {
+        val thread = mirror.value
+        if (mirrorIdle.compareAndSet(true, false)) LockSupport.unpark(thread)
+    }
+
+    /**
+     * Format the entries still in the ring, oldest first
+     */
+    fun writeTo(out: Appendable) {
+        val timeFormat = SimpleDateFormat(TIME_FORMAT, Locale.ROOT)
+        val end = sequence.get()
+        for (number in maxOf(0, end - CAPACITY) until end) {
+            read(number) { time, level, tag, text ->
+                out.append(timeFormat.format(Date(time))).append(' ')
+                    .append(levelName(level)).append('/').append(tag).append(": ").append(text).append('\n')
+            }
+        }
+    }
+
+    /**
+     * Hand entry [number] to [block] if it is still in the ring and complete
+     */
+    private inline fun read(number: Long, block: (time: Long, level: Int, tag: String, text: String) -> Unit) {
+        val slot = (number % CAPACITY).toInt()
+        if (stamps.get(slot) != number) return
+        val time = times[slot]
+        val level = levels[slot]
+        val tag = tags[slot]
+        val message = messages[slot]
+        val first = firstArgs[slot]
+        val second = secondArgs[slot]
+        val numberCount = numberCounts[slot]
+        val firstNumber = numbers[slot * NUMBERS]
+        val secondNumber = numbers[slot * NUMBERS + 1]
+        val thirdNumber = numbers[slot * NUMBERS + 2]
+        // The slot may have been reused while it was read
+        if (stamps.get(slot) != number || tag == null || message == null) return
+        val text = when {
+            numberCount > 0 -> "$message $firstNumber $secondNumber $thirdNumber"
+            first == null -> message
+            second == null -> "$message $first"
+            else -> "$message $first $second"
+        }
+        block(time, level, tag, text)
+    }
+
+    private fun mirrorLoop() {
+        while (true) {
+            // Entries logged in the meantime are written together
+            Thread.sleep(MIRROR_PERIOD_MILLIS)
+            writeMirror()
+            // An entry stored after this drain sees the flag and wakes the thread
+            mirrorIdle.set(true)
+            if (writeMirror() > 0) {
+                mirrorIdle.set(false)
+                continue
+            }
+            while (mirrorIdle.get()) LockSupport.park(this)
+        }
+    }
+
+    /**
+     * Write the entries since the last call to logcat, returns how many were written
+     */
+    private fun writeMirror(): Int {
+        val end = sequence.get()
+        if (end - mirrored > CAPACITY) {
+            Log.w("aCamera EventLog", "${end - mirrored - CAPACITY} entries were not written to logcat")
+            mirrored = end - CAPACITY
+        }
+        var written = 0
+        for (number in mirrored until end) {
+            read(number) { _, level, tag, text ->
+                if (level >= mirrorLevel) {
+                    Log.println(level, tag, text)
+                    written++
+                }
+            }
+        }
+        mirrored = end
+        return written
+    }
+
+    private fun levelName(level: Int) = when (level) {
+        Log.VERBOSE -> 'V'
+        Log.DEBUG -> 'D'
+        Log.INFO -> 'I'
+        Log.WARN -> 'W'
+        else -> 'E'
+    }
+}
@@ -0,0 +1,81 @@
+package com.dirk.acamera.utils
+
+import android.util.Log
+import java.io.File
+import java.security.KeyStore
+import java.security.cert.X509Certificate
+import java.util.*
+import java.util.concurrent.TimeUnit
+import kotlin.concurrent.thread
+
+private const val TAG = "aCamera KeyStoreCache"
+
+/**
+ * Keeps a key store in [file] so the key pair and certificate are only generated once.
+ *
+ * The stored key store is used as long as the certificate of [alias] is valid.
+ * Within [renewBeforeDays] of its expiry a new one is built in the background and used from the next start on.
+ * Only if there is no usable key store at all [build] runs on the calling thread.
+ */
+class KeyStoreCache(
+    private val file: File,
+    private val password: String,
+    private val alias: String,
+    private val renewBeforeDays: Long = RENEW_BEFORE_DAYS_DEFAULT,
+    private val build: () -> KeyStore
+) {
+
+    companion object {
+        const val RENEW_BEFORE_DAYS_DEFAULT = 30L
+        private const val RENEW_THREAD_NAME = "aCamera KeyStore"
+    }
+
+    fun load(): KeyStore {
+        val startNanos = System.nanoTime()
+
+        loadFromFile()?.let { stored ->
+            val notAfter = (stored.getCertificate(alias) as? X509Certificate)?.notAfter
+            val now = Date()
+            if (notAfter != null && notAfter.after(now)) {
+                Log.d(TAG, "Keystore loaded from file (warm) in ${elapsedMillis(startNanos)}ms, valid until $notAfter")
+                if (notAfter.time - now.time < TimeUnit.DAYS.toMillis(renewBeforeDays)) {
+                    renewInBackground()
+                }
+                return stored
+            }
+            Log.d(TAG, "Stored certificate expired at $notAfter")
+        }
+
+        val created = build()
+        created.saveToFile(file, password)
+        Log.d(TAG, "Keystore generated (cold) in ${elapsedMillis(startNanos)}ms")
+        return created
+    }
+
+    private fun loadFromFile(): KeyStore? {
+        if (!file.exists()) return null
+        return try {
+            KeyStore.getInstance(KeyStore.getDefaultType()).apply {
+                file.inputStream().use { load(it, password.toCharArray()) }
+            }.takeIf { it.isKeyEntry(alias) }
+        } catch (error: Exception) {
+            Log.w(TAG, "Could not load keystore from '${file.name}'", error)
+            null
+        }
+    }
+
+    private fun renewInBackground() = thread(name = RENEW_THREAD_NAME) {
+        Log.d(TAG, "Certificate expires soon, renewing...")
+        // Write to a temporary file first, so a crash does not leave a broken key store behind
+        val tmpFile = File(file.parentFile, "${file.name}.tmp")
+        build().saveToFile(tmpFile, password)
+        if (tmpFile.renameTo(file)) {
+            Log.d(TAG, "Certificate renewed, it is used from the next start on")
+        } else {
+            Log.w(TAG, "Could not replace '${file.name}'")
+            tmpFile.delete()
+        }
+    }
+
+    private fun elapsedMillis(startNanos: Long) = (System.nanoTime() - startNanos) / 1_000_000
+}
@@ -0,0 +1,195 @@
+package com.dirk.acamera.utils
+
+import java.io.File
+import java.io.IOException
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.atomic.DoubleAdder
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Metric in the Prometheus text exposition format.
+ * Recording never allocates or locks: counters are striped, histograms have fixed buckets.
+ */
+sealed class Metric(val name: String, val help: String) {
+    internal abstract val type: String
+    internal abstract fun writeSamples(out: Appendable)
+
+    internal fun writeTo(out: Appendable) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n')
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n')
+        writeSamples(out)
+    }
+}
+
+/**
+ * Value that only goes up, either counted here or read from [read]
+ */
+class Counter(name: String, help: String, private val read: (() -> Long)? = null) : Metric(name, help) {
+    override val type get() = "counter"
+    private val adder = LongAdder()
+
+    fun inc() = adder.increment()
+    fun add(value: Long) = adder.add(value)
+    fun get() = read?.invoke() ?: adder.sum()
+
+    override fun writeSamples(out: Appendable) {
+        out.append(name).append(' ').append(get().toString()).append('\n')
+    }
+}
+
+/**
+ * Value that goes up and down, either set here or read from [read]
+ */
+class Gauge(name: String, help: String, private val read: (() -> Double)? = null) : Metric(name, help) {
+    override val type get() = "gauge"
+    @Volatile private var value = 0.0
+
+    fun set(value: Double) {
+        this.value = value
+    }
+    fun get() = read?.invoke() ?: value
+
+    override fun writeSamples(out: Appendable) {
+        out.append(name).append(' ').append(get().toString()).append('\n')
+    }
+}
+
+/**
+ * Distribution of values over fixed [buckets], given as ascending upper bounds
+ */
+class Histogram(name: String, help: String, private val buckets: DoubleArray) : Metric(name, help) {
+    override val type get() = "histogram"
+    // One more than there are buckets, for values above the last bound
+    private val counts = Array(buckets.size + 1) { LongAdder() }
+    private val sum = DoubleAdder()
+
+    fun observe(value: Double) {
+        var index = 0
+        while (index < buckets.size && value > buckets[index]) index++
+        counts[index].increment()
+        sum.add(value)
+    }
+
+    override fun writeSamples(out: Appendable) {
+        var cumulative = 0L
+        buckets.forEachIndexed { index, bound ->
+            cumulative += counts[index].sum()
+            out.append(name).append("_bucket{le=\"").append(bound.toString()).append("\"} ")
+                .append(cumulative.toString()).append('\n')
+        }
+        cumulative += counts[buckets.size].sum()
+        out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative.toString()).append('\n')
+        out.append(name).append("_sum ").append(sum.sum().toString()).append('\n')
+        out.append(name).append("_count ").append(cumulative.toString()).append('\n')
+    }
+}
+
+/**
+ * Set of metrics that are exposed together
+ */
+open class MetricsRegistry {
+
+    companion object {
+        const val CONTENT_TYPE = "text/plain; version=0.0.4"
+    }
+
+    private val metrics = CopyOnWriteArrayList<Metric>()
+
+    fun counter(name: String, help: String, read: (() -> Long)? = null) = register(Counter(name, help, read))
+    fun gauge(name: String, help: String, read: (() -> Double)? = null) = register(Gauge(name, help, read))
+    fun histogram(name: String, help: String, vararg buckets: Double) = register(Histogram(name, help, buckets))
+
+    private fun <T : Metric> register(metric: T): T {
+        metrics.add(metric)
+        return metric
+    }
+
+    fun writeTo(out: Appendable) = metrics.forEach { it.writeTo(out) }
+}
+
+/**
+ * Metrics of the whole process, recorded by code that does not belong to a single server or client
+ */
+object Metrics : MetricsRegistry() {
+    @JvmField
+    val cameraStartTime = histogram(
+        "acamera_camera_start_seconds",
+        "Time from opening the camera until the first frame",
+        0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+    )
+
+    @JvmField
+    val cameraFps = gauge("acamera_camera_fps", "Frames per second captured by the camera")
+
+    @JvmField
+    val viewerConnectTime = histogram(
+        "acamera_viewer_connect_seconds",
+        "Time from a viewer joining until its peer connection is connected, with an offer made for it",
+        0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+    )
+
+    @JvmField
+    val viewerConnectTimeStandby = histogram(
+        "acamera_viewer_connect_standby_seconds",
+        "Time from a viewer joining until its peer connection is connected, with the standby offer",
+        0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0
+    )
+
+    // The average is sum / count of the histogram
+    @JvmField
+    val signalingDispatchTime = histogram(
+        "acamera_signaling_dispatch_seconds",
+        "Time from the signaling client receiving a message until its listener is called",
+        0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05
+    )
+
+    @JvmField
+    val signalingDispatchMax = gauge("acamera_signaling_dispatch_max_seconds", "Longest dispatch of the signaling client")
+
+    @JvmField
+    val rtcOutboundBitrate = gauge("acamera_webrtc_outbound_bitrate_bps", "Bits per second sent to all viewers")
+
+    init {
+        gauge("acamera_jvm_heap_used_bytes", "Heap in use by the app") {
+            Runtime.getRuntime().run { totalMemory() - freeMemory() }.toDouble()
+        }
+        gauge("acamera_jvm_heap_max_bytes", "Heap the app may use at most") { Runtime.getRuntime().maxMemory().toDouble() }
+        gauge("acamera_process_threads", "Threads of the app process") { readProcessThreads().toDouble() }
+        // Gauges, the switches of threads that ended are no longer counted
+        gauge("acamera_process_voluntary_context_switches", "Context switches of the running threads, waiting for something") {
+            sumThreadStatus(STATUS_VOLUNTARY_SWITCHES).toDouble()
+        }
+        gauge("acamera_process_involuntary_context_switches", "Context switches of the running threads, preempted") {
+            sumThreadStatus(STATUS_INVOLUNTARY_SWITCHES).toDouble()
+        }
+    }
+}
+
+// Fields of /proc/<pid>/status, Linux and Android have it
+private const val STATUS_THREADS = "Threads:"
+private const val STATUS_VOLUNTARY_SWITCHES = "voluntary_ctxt_switches:"
+private const val STATUS_INVOLUNTARY_SWITCHES = "nonvoluntary_ctxt_switches:"
+
+/**
+ * Threads of this process, 0 where there is no /proc
+ */
+internal fun readProcessThreads() = readStatusField(File("/proc/self/status"), STATUS_THREADS)
+
+/**
+ * Context switches of all running threads of this process, 0 where there is no /proc.
+ * The status of the process only has the ones of its main thread.
+ */
+internal fun readProcessContextSwitches() =
+    sumThreadStatus(STATUS_VOLUNTARY_SWITCHES) + sumThreadStatus(STATUS_INVOLUNTARY_SWITCHES)
+
+private fun sumThreadStatus(field: String) =
+    File("/proc/self/task").listFiles()?.sumOf { readStatusField(File(it, "status"), field) } ?: 0L
+
+private fun readStatusField(file: File, field: String): Long = try {
+    file.useLines { lines ->
+        lines.firstOrNull { it.startsWith(field) }?.substring(field.length)?.trim()?.toLongOrNull()
+    } ?: 0L
+} catch (error: IOException) {
+    // The thread ended meanwhile
+    0L
+}
@@ -0,0 +1,43 @@
+package com.dirk.acamera.utils
+
+data class Ratio(val width: Int, val height: Int)
+
+fun reduceRatio(width: Int, height: Int) : Ratio {
+    // take care of the simple case
+    if (width == height) return Ratio(1, 1);
+
+    // make sure numerator is always the larger number
+    var isVertical = (width < height)
+
+    val divisor = greatestCommonDivisor(width, height)
+
+    var left: Int
+    var right: Int
+    if (!isVertical) {
+        left = width / divisor;
+        right = height / divisor;
+    } else {
+        left = height / divisor;
+        right = width / divisor;
+    }
+
+    // handle special cases
+    if (8 == left && 5 == right) {
+        left = 16;
+        right = 10;
+    }
+
+    return Ratio(left, right)
+}
+
+fun greatestCommonDivisor(val1: Int, val2: Int): Int {
+    var n1 = val1
+    var n2 = val2
+    while (n1 != n2) {
+        if (n1 > n2)
+            n1 -= n2
+        else
+            n2 -= n1
+    }
+    return n1
+}
@@ -0,0 +1,50 @@
+package com.dirk.acamera.utils
+
+import kotlinx.coroutines.CompletableDeferred
+import java.util.concurrent.ConcurrentLinkedQueue
+
+/**
+ * Records how long each startup phase took.
+ * Phases may run concurrently, every phase is reported with its duration and when it finished.
+ * Startup is done once all of [phaseNames] were recorded, see [awaitPhases].
+ */
+class StartupTimer(private val phaseNames: Set<String> = emptySet()) {
+
+    class Phase(val name: String, val durationMillis: Long, val finishedAtMillis: Long)
+
+    private val startNanos = System.nanoTime()
+    private val phases = ConcurrentLinkedQueue<Phase>()
+    private val allDone = CompletableDeferred<Unit>().apply { if (phaseNames.isEmpty()) complete(Unit) }
+
+    /**
+     * Run [block] and record its duration as phase [name]
+     */
+    inline fun <T> measure(name: String, block: () -> T): T {
+        val phaseStartNanos = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            record(name, phaseStartNanos)
+        }
+    }
+
+    fun record(name: String, phaseStartNanos: Long) {
+        val now = System.nanoTime()
+        phases.add(Phase(name, (now - phaseStartNanos) / 1_000_000, (now - startNanos) / 1_000_000))
+        if (phases.map { it.name }.containsAll(phaseNames)) allDone.complete(Unit)
+    }
+
+    /**
+     * Suspend until every phase of [phaseNames] was recorded, failed ones included
+     */
+    suspend fun awaitPhases() = allDone.await()
+
+    fun getPhases(): List<Phase> = phases.sortedBy { it.finishedAtMillis }
+
+    /**
+     * One line per phase, e.g. "keystore: 12ms (done after 15ms)"
+     */
+    fun report() = getPhases().joinToString("\n") {
+        "${it.name}: ${it.durationMillis}ms (done after ${it.finishedAtMillis}ms)"
+    }
+}
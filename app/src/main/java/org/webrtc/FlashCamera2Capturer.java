@@ -8,6 +8,8 @@ import android.os.Looper;
 
 import androidx.annotation.Nullable;
 
+import com.dirk.acamera.utils.EventLog;
+
 import org.webrtc.CameraSession.CreateSessionCallback;
 import org.webrtc.CameraSession.Events;
 
@@ -73,7 +75,7 @@ public class FlashCamera2Capturer implements FlashCameraVideoCapturer {
     private final CreateSessionCallback createSessionCallback = new CreateSessionCallback() {
         public void onDone(CameraSession session) {
             FlashCamera2Capturer.this.checkIsOnCameraThread();
-            Logging.d("CameraCapturer", "Create session done. Switch state: " + FlashCamera2Capturer.this.switchState);
+            EventLog.d("CameraCapturer", "Create session done. Switch state:", FlashCamera2Capturer.this.switchState);
             FlashCamera2Capturer.this.uiThreadHandler.removeCallbacks(FlashCamera2Capturer.this.openCameraTimeoutRunnable);
             synchronized(FlashCamera2Capturer.this.stateLock) {
                 FlashCamera2Capturer.this.capturerObserver.onCapturerStarted(true);
@@ -236,7 +238,7 @@ public class FlashCamera2Capturer implements FlashCameraVideoCapturer {
     }
 
     public void startCapture(int width, int height, int framerate, boolean useFlash) {
-        Logging.d("CameraCapturer", "startCapture: " + width + "x" + height + "@" + framerate);
+        EventLog.d("CameraCapturer", "startCapture:", width, height, framerate);
         if (this.applicationContext == null) {
             throw new RuntimeException("CameraCapturer must be initialized before calling startCapture.");
         } else {
@@ -305,7 +307,7 @@ public class FlashCamera2Capturer implements FlashCameraVideoCapturer {
     }
 
     public void changeCaptureFormat(int width, int height, int framerate, boolean useFlash) {
-        Logging.d("CameraCapturer", "changeCaptureFormat: " + width + "x" + height + "@" + framerate);
+        EventLog.d("CameraCapturer", "changeCaptureFormat:", width, height, framerate);
         synchronized(this.stateLock) {
             this.stopCapture();
             this.startCapture(width, height, framerate, useFlash);
@@ -17,6 +17,8 @@ import android.os.Handler;
 import android.util.Range;
 import android.view.Surface;
 import androidx.annotation.Nullable;
+import com.dirk.acamera.utils.EventLog;
+import com.dirk.acamera.utils.Metrics;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
@@ -64,7 +66,7 @@ class FlashCamera2Session implements CameraSession {
 
     private FlashCamera2Session(CreateSessionCallback callback, Events events, Context applicationContext, CameraManager cameraManager, SurfaceTextureHelper surfaceTextureHelper, String cameraId, int width, int height, int framerate, boolean useFlash) {
         this.state = FlashCamera2Session.SessionState.RUNNING;
-        Logging.d("Camera2Session", "Create new camera2 session on camera " + cameraId);
+        EventLog.d("Camera2Session", "Create new camera2 session on camera", cameraId);
         this.constructionTimeNs = System.nanoTime();
         this.cameraThreadHandler = new Handler();
         this.callback = callback;
@@ -103,14 +105,14 @@ class FlashCamera2Session implements CameraSession {
         this.fpsUnitFactor = Camera2Enumerator.getFpsUnitFactor(fpsRanges);
         List<CameraEnumerationAndroid.CaptureFormat.FramerateRange> framerateRanges = Camera2Enumerator.convertFramerates(fpsRanges, this.fpsUnitFactor);
         List<Size> sizes = Camera2Enumerator.getSupportedSizes(this.cameraCharacteristics);
-        Logging.d("Camera2Session", "Available preview sizes: " + sizes);
-        Logging.d("Camera2Session", "Available fps ranges: " + framerateRanges);
+        EventLog.d("Camera2Session", "Available preview sizes:", sizes);
+        EventLog.d("Camera2Session", "Available fps ranges:", framerateRanges);
         if (!framerateRanges.isEmpty() && !sizes.isEmpty()) {
-            CameraEnumerationAndroid.CaptureFormat.FramerateRange bestFpsRange = CameraEnumerationAndroid.getClosestSupportedFramerateRange(framerateRanges, this.framerate);
-            Size bestSize = CameraEnumerationAndroid.getClosestSupportedSize(sizes, this.width, this.height);
+            CameraEnumerationAndroid.CaptureFormat.FramerateRange bestFpsRange = FlashCaptureFormats.getClosestSupportedFramerateRange(framerateRanges, this.framerate);
+            Size bestSize = FlashCaptureFormats.getClosestSupportedSize(sizes, this.width, this.height);
             CameraEnumerationAndroid.reportCameraResolution(camera2ResolutionHistogram, bestSize);
             this.captureFormat = new CameraEnumerationAndroid.CaptureFormat(bestSize.width, bestSize.height, bestFpsRange);
-            Logging.d("Camera2Session", "Using capture format: " + this.captureFormat);
+            EventLog.d("Camera2Session", "Using capture format:", this.captureFormat);
         } else {
             this.reportError("No supported capture formats.");
         }
@@ -119,7 +121,7 @@ class FlashCamera2Session implements CameraSession {
     @SuppressLint("MissingPermission")
     private void openCamera() {
         this.checkIsOnCameraThread();
-        Logging.d("Camera2Session", "Opening camera " + this.cameraId);
+        EventLog.d("Camera2Session", "Opening camera", this.cameraId);
         this.events.onCameraOpening();
 
         try {
@@ -130,7 +132,7 @@ class FlashCamera2Session implements CameraSession {
     }
 
     public void stop() {
-        Logging.d("Camera2Session", "Stop camera2 session on camera " + this.cameraId);
+        EventLog.d("Camera2Session", "Stop camera2 session on camera", this.cameraId);
         this.checkIsOnCameraThread();
         if (this.state != FlashCamera2Session.SessionState.STOPPED) {
             long stopStartTime = System.nanoTime();
@@ -245,6 +247,7 @@ class FlashCamera2Session implements CameraSession {
                         FlashCamera2Session.this.firstFrameReported = true;
                         int startTimeMs = (int)TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - FlashCamera2Session.this.constructionTimeNs);
                         FlashCamera2Session.camera2StartTimeMsHistogram.addSample(startTimeMs);
+                        Metrics.cameraStartTime.observe(startTimeMs / 1000.0);
                     }
 
                     VideoFrame modifiedFrame = new VideoFrame(CameraSession.createTextureBufferWithModifiedTransformMatrix((TextureBufferImpl)frame.getBuffer(), FlashCamera2Session.this.isCameraFrontFacing, -FlashCamera2Session.this.cameraOrientation), FlashCamera2Session.this.getFrameOrientation(), frame.getTimestampNs());
@@ -1,5 +1,7 @@
 package org.webrtc;
 
+import com.dirk.acamera.utils.Metrics;
+
 public interface FlashCameraVideoCapturer extends FlashVideoCapturer {
     void switchCamera(FlashCameraVideoCapturer.CameraSwitchHandler var1);
 
@@ -17,6 +19,7 @@ public interface FlashCameraVideoCapturer extends FlashVideoCapturer {
             public void run() {
                 int cameraFps = Math.round((float)CameraStatistics.this.frameCount * 1000.0F / 2000.0F);
                 Logging.d("CameraStatistics", "Camera fps: " + cameraFps + ".");
+                Metrics.cameraFps.set((double)cameraFps);
                 if (CameraStatistics.this.frameCount == 0) {
                     ++CameraStatistics.this.freezePeriodCount;
                     if (2000 * CameraStatistics.this.freezePeriodCount >= 4000 && CameraStatistics.this.eventsHandler != null) {
@@ -0,0 +1,59 @@
+package org.webrtc;
+
+import java.util.List;
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat.FramerateRange;
+
+/**
+ * Picks the supported size and fps range closest to the requested ones.
+ * Same penalties as CameraEnumerationAndroid, but a plain loop instead of a comparator per call.
+ */
+public final class FlashCaptureFormats {
+    // Progressive penalty if the upper bound is further away than MAX_FPS_DIFF_THRESHOLD from requested
+    private static final int MAX_FPS_DIFF_THRESHOLD = 5000;
+    private static final int MAX_FPS_LOW_DIFF_WEIGHT = 1;
+    private static final int MAX_FPS_HIGH_DIFF_WEIGHT = 3;
+    // Progressive penalty if the lower bound is bigger than MIN_FPS_THRESHOLD
+    private static final int MIN_FPS_THRESHOLD = 8000;
+    private static final int MIN_FPS_LOW_VALUE_WEIGHT = 1;
+    private static final int MIN_FPS_HIGH_VALUE_WEIGHT = 4;
+
+    private FlashCaptureFormats() {
+    }
+
+    /**
+     * Ranges are in the fps unit of Camera2Enumerator.convertFramerates, requestedFps in frames per second
+     */
+    public static FramerateRange getClosestSupportedFramerateRange(List<FramerateRange> supportedFramerates, int requestedFps) {
+        FramerateRange best = null;
+        int bestDiff = Integer.MAX_VALUE;
+        for (int i = 0; i < supportedFramerates.size(); i++) {
+            FramerateRange range = supportedFramerates.get(i);
+            int minFpsError = progressivePenalty(range.min, MIN_FPS_THRESHOLD, MIN_FPS_LOW_VALUE_WEIGHT, MIN_FPS_HIGH_VALUE_WEIGHT);
+            int maxFpsError = progressivePenalty(Math.abs(requestedFps * 1000 - range.max), MAX_FPS_DIFF_THRESHOLD, MAX_FPS_LOW_DIFF_WEIGHT, MAX_FPS_HIGH_DIFF_WEIGHT);
+            int diff = minFpsError + maxFpsError;
+            if (diff < bestDiff) {
+                best = range;
+                bestDiff = diff;
+            }
+        }
+        return best;
+    }
+
+    public static Size getClosestSupportedSize(List<Size> supportedSizes, int requestedWidth, int requestedHeight) {
+        Size best = null;
+        int bestDiff = Integer.MAX_VALUE;
+        for (int i = 0; i < supportedSizes.size(); i++) {
+            Size size = supportedSizes.get(i);
+            int diff = Math.abs(requestedWidth - size.width) + Math.abs(requestedHeight - size.height);
+            if (diff < bestDiff) {
+                best = size;
+                bestDiff = diff;
+            }
+        }
+        return best;
+    }
+
+    private static int progressivePenalty(int value, int threshold, int lowWeight, int highWeight) {
+        return value < threshold ? value * lowWeight : threshold * lowWeight + (value - threshold) * highWeight;
+    }
+}
@@ -0,0 +1,107 @@
+package com.dirk.acamera.signaling
+
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.webrtc.IceCandidate
+
+/**
+ * What the in-process connection saves the phone's own client, compared to the wss connection it used before.
+ * Both go through [SignalingClient], with its send queue and session loop, and join right away.
+ * Startup is the time until the relay has the session, latency is the time until a message reached the camera.
+ * Both medians are printed, so the numbers can be compared between runs.
+ */
+class LocalTransportLatencyTest {
+
+    companion object {
+        private const val PORT = 18094
+        private const val TIMEOUT_MILLIS = 10_000L
+        private const val WARMUP = 200
+        private const val ROUNDS = 1000
+        private const val CANDIDATE = "candidate:842163049 1 udp 1686052607 203.0.113.7 46012 typ srflx"
+        // Latency is what is measured, not the relay's rate limits
+        private val UNLIMITED = RateLimits(
+            sessionRate = 1e6,
+            sessionBurst = 1e6,
+            globalRate = 1e6,
+            globalBurst = 1e6
+        )
+    }
+
+    /**
+     * Completes [joined] when the next viewer joined the relay
+     */
+    private class JoinListener : SignalingServerListener {
+        @Volatile var joined = CompletableDeferred<Long>()
+
+        override fun onServerRunning() {}
+        override fun onServerFailed() {}
+        override fun onConnectionEstablished(id: String, role: SignalingRole) {
+            if (role == SignalingRole.VIEWER) joined.complete(System.nanoTime())
+        }
+        override fun onStandbyClaimed(id: String) = false
+        override fun onConnectionAborted(id: String, role: SignalingRole) {}
+    }
+
+    private val serverListener = JoinListener()
+    private lateinit var server: TestSignalingServer
+    private lateinit var wssClient: SignalingClient
+    private lateinit var localClient: SignalingClient
+
+    @Before
+    fun setUp() {
+        server = TestSignalingServer(SignalingRelay(serverListener, rateLimits = UNLIMITED), PORT)
+        wssClient = SignalingClient(TestClientListener())
+        localClient = SignalingClient(TestClientListener())
+    }
+
+    @After
+    fun tearDown() {
+        wssClient.destroy()
+        localClient.destroy()
+        server.close()
+    }
+
+    @Test
+    fun localConnectionIsFasterThanWss() = runBlocking {
+        val camera = server.relay.connectLocal()
+
+        // Before: the client connects over wss
+        val wssStartNanos = System.nanoTime()
+        wssClient.connect(port = PORT, path = TestSignalingServer.SOCKET_PATH)
+        val wssStartupNanos = withTimeout(TIMEOUT_MILLIS) { serverListener.joined.await() } - wssStartNanos
+        val wssLatency = measure(camera, wssClient)
+
+        // After: the client joins the relay in memory
+        serverListener.joined = CompletableDeferred()
+        val localStartNanos = System.nanoTime()
+        localClient.connectLocal { server.relay.connectLocal(SignalingRole.VIEWER) }
+        val localStartupNanos = withTimeout(TIMEOUT_MILLIS) { serverListener.joined.await() } - localStartNanos
+        val localLatency = measure(camera, localClient)
+
+        println("Startup wss: ${wssStartupNanos / 1000}us local: ${localStartupNanos / 1000}us")
+        println("Latency median wss: ${wssLatency / 1000}us local: ${localLatency / 1000}us")
+        assertTrue(localStartupNanos < wssStartupNanos)
+        assertTrue(localLatency < wssLatency)
+        camera.close()
+    }
+
+    /**
+     * Returns the median time from sending a candidate through [client] until it reached [camera]
+     */
+    private suspend fun measure(camera: LocalSignalingConnection, client: SignalingClient): Long {
+        val nanos = List(WARMUP + ROUNDS) {
+            val startNanos = System.nanoTime()
+            client.send(IceCandidate("0", 0, CANDIDATE))
+            val message = withTimeout(TIMEOUT_MILLIS) { camera.incoming.receive() }
+            val nanos = System.nanoTime() - startNanos
+            assertEquals(CANDIDATE, (SignalingMessageDecoder.decode(message) as SignalingMessage.Candidate).iceCandidate.sdp)
+            nanos
+        }.drop(WARMUP)
+        return nanos.sorted()[ROUNDS / 2]
+    }
+}
@@ -0,0 +1,64 @@
+package com.dirk.acamera.signaling
+
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.lang.management.ManagementFactory
+
+/**
+ * A connected client that has nothing to do must not burn CPU
+ */
+class SignalingClientIdleTest {
+
+    companion object {
+        private const val PORT = 18092
+        private const val TIMEOUT_MILLIS = 10_000L
+        private const val SETTLE_MILLIS = 2000L
+        private const val IDLE_MILLIS = 5000L
+        // A busy loop costs a minute per minute, an idle client costs next to nothing
+        private const val CPU_MILLIS_PER_MINUTE_MAX = 2000.0
+    }
+
+    private val listener = TestClientListener()
+    private lateinit var server: TestSignalingServer
+    private lateinit var client: SignalingClient
+
+    @Before
+    fun setUp() {
+        server = TestSignalingServer(SignalingRelay(TestListener()), PORT)
+        client = SignalingClient(listener)
+    }
+
+    @After
+    fun tearDown() {
+        client.destroy()
+        server.close()
+    }
+
+    @Test
+    fun idleClientUsesNoCpu() = runBlocking {
+        client.connect(port = PORT, path = TestSignalingServer.SOCKET_PATH)
+        withTimeout(TIMEOUT_MILLIS) {
+            listener.established.await()
+            while (server.relay.connections == 0) delay(10)
+        }
+        delay(SETTLE_MILLIS)
+
+        val startCpuNanos = processCpuNanos()
+        val startNanos = System.nanoTime()
+        delay(IDLE_MILLIS)
+        val cpuMillis = (processCpuNanos() - startCpuNanos) / 1e6
+        val cpuMillisPerMinute = cpuMillis * 60_000 / ((System.nanoTime() - startNanos) / 1e6)
+
+        println("CPU time per idle minute: ${"%.0f".format(cpuMillisPerMinute)}ms")
+        assertEquals(SignalingClient.State.CONNECTION_ESTABLISHED, client.state)
+        assertTrue(cpuMillisPerMinute < CPU_MILLIS_PER_MINUTE_MAX)
+    }
+
+    private fun processCpuNanos() =
+        (ManagementFactory.getOperatingSystemMXBean() as com.sun.management.OperatingSystemMXBean).processCpuTime
+}
@@ -0,0 +1,74 @@
+package com.dirk.acamera.signaling
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import org.webrtc.IceCandidate
+
+/**
+ * A burst of candidates from the client reaches the camera complete and in order
+ */
+class SignalingClientStressTest {
+
+    companion object {
+        private const val PORT = 18093
+        private const val CANDIDATES = 5000
+        private const val TIMEOUT_MILLIS = 30_000L
+        // The burst is what is tested, not the relay's rate limits
+        private val UNLIMITED = RateLimits(
+            sessionRate = 1e6,
+            sessionBurst = 1e6,
+            globalRate = 1e6,
+            globalBurst = 1e6
+        )
+    }
+
+    private val listener = TestClientListener()
+    private lateinit var server: TestSignalingServer
+    private lateinit var client: SignalingClient
+
+    @Before
+    fun setUp() {
+        server = TestSignalingServer(SignalingRelay(TestListener(), rateLimits = UNLIMITED), PORT)
+        client = SignalingClient(listener)
+    }
+
+    @After
+    fun tearDown() {
+        client.destroy()
+        server.close()
+    }
+
+    @Test
+    fun noCandidateIsLost() = runBlocking {
+        val camera = server.relay.connectLocal()
+        client.connect(port = PORT, path = TestSignalingServer.SOCKET_PATH)
+        withTimeout(TIMEOUT_MILLIS) {
+            listener.established.await()
+            while (server.relay.getViewerIds().isEmpty()) delay(10)
+        }
+
+        val received = async {
+            List(CANDIDATES) {
+                val message = SignalingMessageDecoder.decode(camera.incoming.receive())
+                (message as SignalingMessage.Candidate).iceCandidate.sdp
+            }
+        }
+        val sent = List(CANDIDATES) { "candidate:$it 1 udp 2122260223 192.168.1.20 ${10000 + it} typ host" }
+        sent.forEach { client.sendIceCandidate(IceCandidate("0", 0, it)) }
+
+        assertEquals(sent, withTimeout(TIMEOUT_MILLIS) { received.await() })
+        // The last message is counted right after it was written
+        withTimeout(TIMEOUT_MILLIS) {
+            while (client.messagesSent < CANDIDATES) delay(10)
+        }
+        assertEquals(CANDIDATES.toLong(), client.messagesEnqueued)
+        assertEquals(0L, client.messagesDropped)
+        camera.close()
+    }
+}
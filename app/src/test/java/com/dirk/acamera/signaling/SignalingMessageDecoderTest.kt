@@ -0,0 +1,75 @@
+package com.dirk.acamera.signaling
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.webrtc.SessionDescription
+
+class SignalingMessageDecoderTest {
+
+    @Test
+    fun browserCandidateIsDecoded() {
+        val message = SignalingMessageDecoder.decode(
+            """{"from":"viewer-1","candidate":"candidate:1 1 udp 2122260223 192.168.1.20 50000 typ host","sdpMid":"0","sdpMLineIndex":0}"""
+        ) as SignalingMessage.Candidate
+        assertEquals("viewer-1", message.from)
+        assertEquals("0", message.iceCandidate.sdpMid)
+        assertEquals(0, message.iceCandidate.sdpMLineIndex)
+        assertEquals("candidate:1 1 udp 2122260223 192.168.1.20 50000 typ host", message.iceCandidate.sdp)
+    }
+
+    @Test
+    fun androidCandidateIsDecoded() {
+        val message = SignalingMessageDecoder.decode(
+            """{"sdpMid":"1","sdpMLineIndex":1,"sdp":"candidate:2 1 udp 1686052607 203.0.113.7 50001 typ srflx"}"""
+        ) as SignalingMessage.Candidate
+        assertNull(message.from)
+        assertEquals("1", message.iceCandidate.sdpMid)
+        assertEquals(1, message.iceCandidate.sdpMLineIndex)
+        assertEquals("candidate:2 1 udp 1686052607 203.0.113.7 50001 typ srflx", message.iceCandidate.sdp)
+    }
+
+    @Test
+    fun lowercaseDescriptionIsDecoded() {
+        val message = SignalingMessageDecoder.decode("""{"type":"answer","sdp":"v=0"}""") as SignalingMessage.Description
+        assertEquals(SessionDescription.Type.ANSWER, message.sessionDescription.type)
+        assertEquals("v=0", message.sessionDescription.description)
+    }
+
+    @Test
+    fun uppercaseDescriptionIsDecoded() {
+        val message = SignalingMessageDecoder.decode("""{"type":"OFFER","description":"v=0"}""") as SignalingMessage.Description
+        assertEquals(SessionDescription.Type.OFFER, message.sessionDescription.type)
+        assertEquals("v=0", message.sessionDescription.description)
+    }
+
+    @Test
+    fun batchIsDecoded() {
+        val message = SignalingMessageDecoder.decode(
+            """{"type":"candidates","candidates":[""" +
+                """{"sdpMid":"0","sdpMLineIndex":0,"sdp":"candidate:1"},""" +
+                """{"sdpMid":"1","sdpMLineIndex":1,"candidate":"candidate:2"}]}"""
+        ) as SignalingMessage.Candidates
+        assertEquals(listOf("candidate:1", "candidate:2"), message.iceCandidates.map { it.sdp })
+        assertEquals(listOf(0, 1), message.iceCandidates.map { it.sdpMLineIndex })
+    }
+
+    @Test
+    fun nullAndUnknownFramesAreIgnored() {
+        assertNull(SignalingMessageDecoder.decode("null"))
+        assertNull(SignalingMessageDecoder.decode("""{"type":"hello"}"""))
+        assertNull(SignalingMessageDecoder.decode("""{"sdpMid":"0"}"""))
+    }
+
+    @Test
+    fun firstSenderWins() {
+        val message = SignalingMessageDecoder.decode("""{"from":"a","from":"forged","type":"answer","sdp":"v=0"}""")
+        assertEquals("a", message?.from)
+    }
+
+    @Test
+    fun clientCannotImpersonateAnotherSender() {
+        val forged = """{"from":"camera","type":"answer","sdp":"v=0"}"""
+        val message = SignalingMessageDecoder.decode(SignalingRouting.withSender(forged, "viewer-1"))
+        assertEquals("viewer-1", message?.from)
+    }
+}
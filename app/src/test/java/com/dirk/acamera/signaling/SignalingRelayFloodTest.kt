@@ -0,0 +1,119 @@
+package com.dirk.acamera.signaling
+
+import io.ktor.application.*
+import io.ktor.routing.*
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import io.ktor.websocket.*
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+import kotlin.concurrent.thread
+
+/**
+ * Viewers flooding the relay must not cost the viewers that negotiate a single message
+ */
+class SignalingRelayFloodTest {
+
+    companion object {
+        private const val PORT = 18095
+        private const val SOCKET_PATH = "/socket"
+        private const val TIMEOUT_MILLIS = 10_000L
+        private const val FLOODERS = 8
+        private const val FLOOD_MESSAGES = 200
+        private const val VIEWERS = 4
+        private const val CANDIDATES = 5
+        private const val LATENCY_MAX_MILLIS = 500L
+        private const val JOIN_VIEWER = """{"type":"join","role":"viewer","room":"default"}"""
+        private const val FLOOD_MESSAGE = """{"type":"flood"}"""
+        // Flooders are slowed down after a few messages, and what they send then is well above the global rate
+        private val LIMITS = RateLimits(
+            sessionRate = 20.0,
+            sessionBurst = 10.0,
+            globalRate = 20.0,
+            globalBurst = 20.0
+        )
+    }
+
+    private lateinit var relay: SignalingRelay
+    private lateinit var server: ApplicationEngine
+
+    @Before
+    fun setUp() {
+        relay = SignalingRelay(TestListener(), rateLimits = LIMITS)
+        server = embeddedServer(Netty, port = PORT) {
+            install(WebSockets)
+            routing {
+                webSocketRaw(path = SOCKET_PATH) {
+                    relay.serve(this)
+                }
+            }
+        }.start(wait = false)
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0, 1000)
+    }
+
+    @Test
+    fun negotiationArrivesDuringFlood() = runBlocking {
+        val camera = relay.connectLocal()
+        val sentNanos = ConcurrentHashMap<String, Long>()
+        val latencies = ConcurrentHashMap<String, Long>()
+        val receiving = launch {
+            for (text in camera.incoming) {
+                val receivedNanos = System.nanoTime()
+                val key = when (val message = SignalingMessageDecoder.decode(text)) {
+                    is SignalingMessage.Candidate -> message.iceCandidate.sdp
+                    is SignalingMessage.Description -> message.sessionDescription.description
+                    else -> null
+                } ?: continue
+                sentNanos[key]?.let { latencies[key] = receivedNanos - it }
+            }
+        }
+
+        val flooders = List(FLOODERS) { TestWebSocket(PORT, SOCKET_PATH).apply { sendText(JOIN_VIEWER) } }
+        val viewers = List(VIEWERS) { TestWebSocket(PORT, SOCKET_PATH).apply { sendText(JOIN_VIEWER) } }
+        try {
+            withTimeout(TIMEOUT_MILLIS) {
+                while (relay.getViewerIds().size < FLOODERS + VIEWERS) delay(10)
+            }
+            val flooding = flooders.map { socket -> thread { repeat(FLOOD_MESSAGES) { socket.sendText(FLOOD_MESSAGE) } } }
+
+            // Negotiate once the flooders are slowed down and dropped
+            withTimeout(TIMEOUT_MILLIS) {
+                while (relay.rateLimitStatistics.messagesDropped == 0L) delay(10)
+            }
+            viewers.forEachIndexed { index, socket ->
+                val answer = "v=0 viewer $index"
+                sentNanos[answer] = System.nanoTime()
+                socket.sendText("""{"type":"answer","sdp":"$answer"}""")
+                repeat(CANDIDATES) {
+                    val candidate = "candidate:$index$it 1 udp 2122260223 192.168.1.20 ${50000 + it} typ host"
+                    sentNanos[candidate] = System.nanoTime()
+                    socket.sendText("""{"sdpMid":"0","sdpMLineIndex":0,"sdp":"$candidate"}""")
+                }
+            }
+
+            withTimeout(TIMEOUT_MILLIS) {
+                while (latencies.size < sentNanos.size) delay(10)
+            }
+            val latencyMaxMillis = latencies.values.maxOrNull()!! / 1_000_000
+            println("Negotiation latency max: ${latencyMaxMillis}ms, flood messages dropped: ${relay.rateLimitStatistics.messagesDropped}")
+            assertEquals(VIEWERS * (1 + CANDIDATES), latencies.size)
+            assertTrue(latencyMaxMillis < LATENCY_MAX_MILLIS)
+            flooding.forEach { it.join() }
+        } finally {
+            (flooders + viewers).forEach { it.close() }
+            receiving.cancel()
+            camera.close()
+        }
+    }
+}
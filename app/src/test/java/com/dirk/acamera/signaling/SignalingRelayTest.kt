@@ -0,0 +1,175 @@
+package com.dirk.acamera.signaling
+
+import io.ktor.application.*
+import io.ktor.http.cio.websocket.*
+import io.ktor.routing.*
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import io.ktor.websocket.*
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Before
+import org.junit.Test
+
+/**
+ * Drives the relay through a real server with hand written web socket frames
+ */
+class SignalingRelayTest {
+
+    companion object {
+        private const val PORT = 18091
+        private const val SOCKET_PATH = "/socket"
+        private const val MESSAGE_SIZE_MAX = 1024
+        private const val TIMEOUT_MILLIS = 5000L
+        private const val JOIN_VIEWER = """{"type":"join","role":"viewer","room":"default"}"""
+    }
+
+    private val listener = TestListener()
+    private lateinit var relay: SignalingRelay
+    private lateinit var server: ApplicationEngine
+
+    @Before
+    fun setUp() {
+        relay = SignalingRelay(listener, maxMessageSize = MESSAGE_SIZE_MAX)
+        server = embeddedServer(Netty, port = PORT) {
+            install(WebSockets) {
+                maxFrameSize = MESSAGE_SIZE_MAX.toLong()
+            }
+            routing {
+                webSocketRaw(path = SOCKET_PATH) {
+                    relay.serve(this)
+                }
+            }
+        }.start(wait = false)
+    }
+
+    @After
+    fun tearDown() {
+        server.stop(0, 1000)
+    }
+
+    @Test
+    fun fragmentedMessageIsReassembled() = runBlocking {
+        val camera = relay.connectLocal()
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            val answer = """{"type":"answer","sdp":"${"a".repeat(MESSAGE_SIZE_MAX / 2)}"}"""
+            socket.sendFragmented(answer, 3)
+
+            val relayed = withTimeout(TIMEOUT_MILLIS) { camera.incoming.receive() }
+            assertTrue(relayed.startsWith("{\"from\":\""))
+            assertTrue(relayed.endsWith(answer.substring(1)))
+        }
+        camera.close()
+    }
+
+    @Test
+    fun fragmentedMessageOverTheLimitIsRejected() = runBlocking {
+        val camera = relay.connectLocal()
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            // Every fragment is well below the frame limit, together they are above the message limit
+            val answer = """{"type":"answer","sdp":"${"a".repeat(MESSAGE_SIZE_MAX * 3)}"}"""
+            socket.sendFragmented(answer, 8)
+
+            val frame = socket.receiveData()
+            assertEquals(TestWebSocket.OPCODE_CLOSE, frame.opcode)
+            assertEquals(CloseReason.Codes.TOO_BIG.code.toInt(), frame.closeCode)
+        }
+        assertEquals(1L, relay.memoryStatistics.sessionsRejected)
+        assertNull(camera.incoming.tryReceive().getOrNull())
+        camera.close()
+    }
+
+    @Test
+    fun standbyOfferIsKeptUntilTheCameraTakesTheViewer() = runBlocking {
+        val camera = relay.connectLocal()
+        camera.send("""{"to":"standby","type":"OFFER","description":"v=0"}""")
+
+        // Camera is full, the first viewer does not get the offer
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            withTimeout(TIMEOUT_MILLIS) {
+                while (relay.getViewerIds().isEmpty()) delay(10)
+            }
+        }
+        assertTrue(listener.standbyClaimed.isEmpty())
+
+        // The next viewer gets it once the camera takes viewers again
+        listener.acceptStandby = true
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            val frame = socket.receiveData()
+            assertEquals(TestWebSocket.OPCODE_TEXT, frame.opcode)
+            assertTrue(frame.text.contains("\"OFFER\""))
+        }
+        assertEquals(1, listener.standbyClaimed.size)
+        camera.close()
+    }
+
+    @Test
+    fun withdrawnStandbyOfferIsNotHandedOut() = runBlocking {
+        listener.acceptStandby = true
+        val camera = relay.connectLocal()
+        camera.send("""{"to":"standby","type":"OFFER","description":"v=0"}""")
+        camera.send("""{"to":"standby","type":"withdraw"}""")
+
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            withTimeout(TIMEOUT_MILLIS) {
+                while (relay.getViewerIds().isEmpty()) delay(10)
+            }
+        }
+        assertTrue(listener.standbyClaimed.isEmpty())
+        camera.close()
+    }
+
+    @Test
+    fun senderCannotBeForged() = runBlocking {
+        val camera = relay.connectLocal()
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            withTimeout(TIMEOUT_MILLIS) {
+                while (relay.getViewerIds().isEmpty()) delay(10)
+            }
+            val id = relay.getViewerIds().single()
+            socket.sendText("  \n" + """{"from":"other-viewer","type":"answer","sdp":"v=0"}""")
+            socket.sendText("\uFEFF" + """{"from":"other-viewer","type":"answer","sdp":"v=0"}""")
+            socket.sendText("""{"type":"answer","sdp":"v=0"}""")
+
+            // The first one is tagged, the second one is dropped since it is no JSON object
+            val first = withTimeout(TIMEOUT_MILLIS) { camera.incoming.receive() }
+            assertEquals(id, SignalingMessageDecoder.decode(first)?.from)
+            val next = withTimeout(TIMEOUT_MILLIS) { camera.incoming.receive() }
+            assertEquals("""{"from":"$id","type":"answer","sdp":"v=0"}""", next)
+        }
+        camera.close()
+    }
+
+    @Test
+    fun pingIsAnswered() {
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText(JOIN_VIEWER)
+            socket.send(TestWebSocket.OPCODE_PING, true, "ping".toByteArray())
+
+            val frame = socket.receiveData()
+            assertEquals(TestWebSocket.OPCODE_PONG, frame.opcode)
+            assertEquals("ping", frame.text)
+        }
+    }
+
+    @Test
+    fun remoteCameraIsRejected() {
+        TestWebSocket(PORT, SOCKET_PATH).use { socket ->
+            socket.sendText("""{"type":"join","role":"camera","room":"default"}""")
+
+            val frame = socket.receiveData()
+            assertEquals(TestWebSocket.OPCODE_CLOSE, frame.opcode)
+            assertEquals(CloseReason.Codes.VIOLATED_POLICY.code.toInt(), frame.closeCode)
+        }
+        assertTrue(relay.getViewerIds().isEmpty())
+    }
+}
@@ -0,0 +1,100 @@
+package com.dirk.acamera.signaling
+
+import com.google.gson.Gson
+import org.junit.Assert.*
+import org.junit.Test
+
+class SignalingRoutingTest {
+
+    @Test
+    fun joinIsParsed() {
+        val join = SignalingRouting.parseJoin("""{"type":"join","role":"camera","room":"garden","batching":true}""")
+        assertEquals(JoinMessage(SignalingRole.CAMERA, "garden", true), join)
+    }
+
+    @Test
+    fun joinDefaultsToViewerInTheDefaultRoom() {
+        val join = SignalingRouting.parseJoin("""{"type":"join"}""")
+        assertEquals(JoinMessage(SignalingRole.VIEWER, SignalingRouting.ROOM_DEFAULT, false), join)
+        assertEquals(SignalingRole.VIEWER, SignalingRouting.parseJoin("""{"type":"join","role":"admin"}""")?.role)
+    }
+
+    @Test
+    fun encodedJoinIsParsed() {
+        val join = JoinMessage(SignalingRole.VIEWER, "garden", true)
+        assertEquals(join, SignalingRouting.parseJoin(SignalingRouting.encodeJoin(join)))
+    }
+
+    @Test
+    fun otherMessagesAreNoJoin() {
+        assertNull(SignalingRouting.parseJoin("""{"type":"answer","sdp":"joined"}"""))
+        assertNull(SignalingRouting.parseJoin("""{"type":"join""""))
+        assertNull(SignalingRouting.parseJoin("null"))
+    }
+
+    @Test
+    fun senderIsPrependedAndRead() {
+        val tagged = SignalingRouting.withSender("""{"type":"answer"}""", "viewer-1")
+        assertEquals("""{"from":"viewer-1","type":"answer"}""", tagged)
+        assertEquals("viewer-1", SignalingRouting.readSender(tagged))
+        assertEquals("""{"from":"viewer-1"}""", SignalingRouting.withSender("{}", "viewer-1"))
+    }
+
+    @Test
+    fun senderOfTheRelayComesBeforeOneTheClientWrote() {
+        val tagged = SignalingRouting.withSender("""{"from":"camera","type":"answer"}""", "viewer-1")
+        assertEquals("viewer-1", SignalingRouting.readSender(tagged))
+    }
+
+    @Test
+    fun senderIsPrependedAfterLeadingWhitespace() {
+        val tagged = SignalingRouting.withSender(" \r\n\t" + """{"from":"camera","type":"answer"}""", "viewer-1")
+        assertEquals("""{"from":"viewer-1","from":"camera","type":"answer"}""", tagged)
+        assertEquals("viewer-1", SignalingMessageDecoder.decode(tagged)?.from)
+    }
+
+    @Test
+    fun onlyJsonObjectsAreTagged() {
+        assertNull(SignalingRouting.readSender(SignalingRouting.withSender("null", "viewer-1")))
+        assertNull(SignalingRouting.readSender(SignalingRouting.withSender("\uFEFF{}", "viewer-1")))
+    }
+
+    @Test
+    fun targetIsPrependedAndRead() {
+        val addressed = SignalingRouting.withTarget("""{"type":"OFFER"}""", "viewer-2")
+        assertEquals("""{"to":"viewer-2","type":"OFFER"}""", addressed)
+        assertEquals("viewer-2", SignalingRouting.readTarget(addressed))
+        assertNull(SignalingRouting.readTarget("""{"type":"OFFER","to":"viewer-2"}"""))
+    }
+
+    @Test
+    fun batchIsSplitIntoSingleCandidates() {
+        val batch = """{"type":"candidates","candidates":[""" +
+            """{"sdpMid":"0","sdpMLineIndex":0,"sdp":"candidate:1"},""" +
+            """{"sdpMid":"1","sdpMLineIndex":1,"sdp":"candidate:2"}]}"""
+        assertTrue(SignalingRouting.isCandidateBatch(batch))
+        assertTrue(SignalingRouting.isCandidate(batch))
+        assertEquals(
+            listOf(
+                """{"sdpMid":"0","sdpMLineIndex":0,"sdp":"candidate:1"}""",
+                """{"sdpMid":"1","sdpMLineIndex":1,"sdp":"candidate:2"}"""
+            ),
+            SignalingRouting.splitCandidateBatch(batch)
+        )
+    }
+
+    @Test
+    fun withdrawalIsRecognized() {
+        assertTrue(SignalingRouting.isWithdrawal(SignalingRouting.withTarget(Gson().toJson(StandbyWithdrawal()), "standby")))
+        assertFalse(SignalingRouting.isWithdrawal("""{"to":"standby","type":"OFFER"}"""))
+    }
+
+    @Test
+    fun singleMessagesAreNoBatch() {
+        val candidate = """{"sdpMid":"0","sdpMLineIndex":0,"sdp":"candidate:1"}"""
+        assertFalse(SignalingRouting.isCandidateBatch(candidate))
+        assertTrue(SignalingRouting.isCandidate(candidate))
+        assertEquals(listOf(candidate), SignalingRouting.splitCandidateBatch(candidate))
+        assertFalse(SignalingRouting.isCandidate("""{"type":"OFFER"}"""))
+    }
+}
@@ -0,0 +1,27 @@
+package com.dirk.acamera.signaling
+
+import kotlinx.coroutines.CompletableDeferred
+import org.webrtc.IceCandidate
+import org.webrtc.SessionDescription
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Client listener that remembers what it was told
+ */
+class TestClientListener : SignalingClientListener {
+    val established = CompletableDeferred<Unit>()
+    val candidates = CopyOnWriteArrayList<IceCandidate>()
+
+    override fun onConnectionEstablished() {
+        established.complete(Unit)
+    }
+    override fun onConnectionFailed() {
+        established.completeExceptionally(IllegalStateException("Connection failed"))
+    }
+    override fun onConnectionAborted() {}
+    override fun onOfferReceived(from: String?, description: SessionDescription) {}
+    override fun onAnswerReceived(from: String?, description: SessionDescription) {}
+    override fun onIceCandidateReceived(from: String?, iceCandidate: IceCandidate) {
+        candidates.add(iceCandidate)
+    }
+}
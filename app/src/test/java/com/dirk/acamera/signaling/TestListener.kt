@@ -0,0 +1,26 @@
+package com.dirk.acamera.signaling
+
+import java.util.concurrent.CopyOnWriteArrayList
+
+/**
+ * Server listener that remembers who connected, it takes standby offers if [acceptStandby] is set
+ */
+class TestListener : SignalingServerListener {
+    val established = CopyOnWriteArrayList<String>()
+    val aborted = CopyOnWriteArrayList<String>()
+    val standbyClaimed = CopyOnWriteArrayList<String>()
+    @Volatile var acceptStandby = false
+
+    override fun onServerRunning() {}
+    override fun onServerFailed() {}
+    override fun onConnectionEstablished(id: String, role: SignalingRole) {
+        established.add(id)
+    }
+    override fun onStandbyClaimed(id: String): Boolean {
+        if (acceptStandby) standbyClaimed.add(id)
+        return acceptStandby
+    }
+    override fun onConnectionAborted(id: String, role: SignalingRole) {
+        aborted.add(id)
+    }
+}
@@ -0,0 +1,64 @@
+package com.dirk.acamera.signaling
+
+import com.dirk.acamera.utils.buildKeyStore
+import io.ktor.application.*
+import io.ktor.network.tls.extensions.*
+import io.ktor.routing.*
+import io.ktor.server.engine.*
+import io.ktor.server.netty.*
+import io.ktor.websocket.*
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+import javax.net.ssl.X509TrustManager
+
+/**
+ * In-process wss server in front of [relay], with a key pair like the app's.
+ * It also sets up the trust [SignalingClient] uses to connect to the app's server.
+ */
+class TestSignalingServer(val relay: SignalingRelay, val port: Int) : AutoCloseable {
+
+    companion object {
+        const val SOCKET_PATH = "/socket"
+        private const val CERT_PASS = "android"
+    }
+
+    private val server: ApplicationEngine
+
+    init {
+        val keyStore = buildKeyStore {
+            certificate(SignalingServer.CERT_ALIAS) {
+                hash = HashAlgorithm.SHA256
+                sign = SignatureAlgorithm.ECDSA
+                keySizeInBits = 256
+                password = CERT_PASS
+            }
+        }
+        val trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+        trustManagerFactory.init(keyStore)
+        SignalingServer.keyStore = keyStore
+        SignalingServer.sslContext = SSLContext.getInstance("TLS").apply { init(null, trustManagerFactory.trustManagers, null) }
+        SignalingServer.x509TrustManager = trustManagerFactory.trustManagers.first { it is X509TrustManager } as X509TrustManager
+
+        val environment = applicationEngineEnvironment {
+            sslConnector(
+                keyStore,
+                SignalingServer.CERT_ALIAS,
+                { SignalingServer.KEYSTORE_PASS.toCharArray() },
+                { CERT_PASS.toCharArray() }
+            ) {
+                port = this@TestSignalingServer.port
+            }
+            module {
+                install(WebSockets)
+                routing {
+                    webSocketRaw(path = SOCKET_PATH) {
+                        relay.serve(this)
+                    }
+                }
+            }
+        }
+        server = embeddedServer(Netty, environment).start(wait = false)
+    }
+
+    override fun close() = server.stop(0, 1000)
+}
@@ -0,0 +1,115 @@
+package com.dirk.acamera.signaling
+
+import java.io.DataInputStream
+import java.io.IOException
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.Socket
+import kotlin.random.Random
+
+/**
+ * Web socket client that writes frames as they are given, so tests can send fragments and control frames
+ * exactly the way a browser would
+ */
+class TestWebSocket(port: Int, path: String) : AutoCloseable {
+
+    companion object {
+        const val OPCODE_CONTINUATION = 0x0
+        const val OPCODE_TEXT = 0x1
+        const val OPCODE_CLOSE = 0x8
+        const val OPCODE_PING = 0x9
+        const val OPCODE_PONG = 0xA
+        private const val TIMEOUT_MILLIS = 5000
+        private const val KEY = "dGhlIHNhbXBsZSBub25jZQ=="
+    }
+
+    class Frame(val opcode: Int, val fin: Boolean, val payload: ByteArray) {
+        val text get() = String(payload, Charsets.UTF_8)
+
+        /** Status code of a close frame */
+        val closeCode get() = ((payload[0].toInt() and 0xff) shl 8) or (payload[1].toInt() and 0xff)
+    }
+
+    private val socket = Socket(InetAddress.getLoopbackAddress(), port).apply { soTimeout = TIMEOUT_MILLIS }
+    private val input = DataInputStream(socket.getInputStream())
+    private val output: OutputStream = socket.getOutputStream()
+
+    init {
+        output.write(
+            ("GET $path HTTP/1.1\r\nHost: 127.0.0.1:$port\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n" +
+                "Sec-WebSocket-Key: $KEY\r\nSec-WebSocket-Version: 13\r\n\r\n").toByteArray()
+        )
+        output.flush()
+        val response = readHeaders()
+        if (!response.startsWith("HTTP/1.1 101")) throw IOException("Upgrade failed: $response")
+    }
+
+    fun sendText(text: String) = send(OPCODE_TEXT, true, text.toByteArray())
+
+    /**
+     * Send [text] split into [count] fragments
+     */
+    fun sendFragmented(text: String, count: Int) {
+        val bytes = text.toByteArray()
+        val size = (bytes.size + count - 1) / count
+        for (index in 0 until count) {
+            val fragment = bytes.copyOfRange(minOf(index * size, bytes.size), minOf((index + 1) * size, bytes.size))
+            send(if (index == 0) OPCODE_TEXT else OPCODE_CONTINUATION, index == count - 1, fragment)
+        }
+    }
+
+    /**
+     * Write a single frame, masked like every client frame has to be
+     */
+    fun send(opcode: Int, fin: Boolean, payload: ByteArray) {
+        val mask = Random.nextBytes(4)
+        output.write((if (fin) 0x80 else 0) or opcode)
+        when {
+            payload.size < 126 -> output.write(0x80 or payload.size)
+            payload.size < 65536 -> {
+                output.write(0x80 or 126)
+                output.write(payload.size shr 8)
+                output.write(payload.size and 0xff)
+            }
+            else -> {
+                output.write(0x80 or 127)
+                for (shift in 56 downTo 0 step 8) output.write((payload.size.toLong() shr shift).toInt() and 0xff)
+            }
+        }
+        output.write(mask)
+        output.write(ByteArray(payload.size) { (payload[it].toInt() xor mask[it % 4].toInt()).toByte() })
+        output.flush()
+    }
+
+    /**
+     * Next frame from the server, server frames are not masked
+     */
+    fun receive(): Frame {
+        val first = input.readUnsignedByte()
+        val second = input.readUnsignedByte()
+        val length = when (val shortLength = second and 0x7f) {
+            126 -> input.readUnsignedShort().toLong()
+            127 -> input.readLong()
+            else -> shortLength.toLong()
+        }
+        val payload = ByteArray(length.toInt())
+        input.readFully(payload)
+        return Frame(first and 0x0f, first and 0x80 != 0, payload)
+    }
+
+    /**
+     * Next frame that is no ping
+     */
+    fun receiveData(): Frame {
+        while (true) {
+            val frame = receive()
+            if (frame.opcode != OPCODE_PING) return frame
+        }
+    }
+
+    override fun close() = socket.close()
+
+    private fun readHeaders() = buildString {
+        while (!endsWith("\r\n\r\n")) append(input.readUnsignedByte().toChar())
+    }
+}
@@ -0,0 +1,157 @@
+package com.dirk.acamera.signaling
+
+import com.dirk.acamera.utils.buildKeyStore
+import io.ktor.network.tls.extensions.*
+import io.netty.buffer.ByteBufAllocator
+import io.netty.handler.ssl.SslContext
+import org.junit.Assert.*
+import org.junit.BeforeClass
+import org.junit.Test
+import java.nio.ByteBuffer
+import java.security.KeyStore
+import java.security.PrivateKey
+import java.security.cert.X509Certificate
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLEngine
+import javax.net.ssl.SSLEngineResult.HandshakeStatus
+import javax.net.ssl.TrustManagerFactory
+
+/**
+ * Handshakes against the server's TLS context, in memory.
+ * The client sticks to TLS 1.2, where a resumed session keeps its ID. Stateless session tickets are turned off,
+ * so sessions are resumed from the server's cache, the one TlsTuning configures.
+ */
+class TlsTuningTest {
+
+    companion object {
+        private const val ALIAS = "aCamera"
+        private const val PASSWORD = "android"
+        private const val HOST = "127.0.0.1"
+        private const val PORT = 8443
+        private const val WARMUP = 20
+        private const val ROUNDS = 50
+        private const val STEPS_MAX = 100
+
+        private lateinit var keyStore: KeyStore
+
+        @BeforeClass
+        @JvmStatic
+        fun createKeyStore() {
+            System.setProperty("jdk.tls.server.enableSessionTicketExtension", "false")
+            System.setProperty("jdk.tls.client.enableSessionTicketExtension", "false")
+            keyStore = buildKeyStore {
+                certificate(ALIAS) {
+                    hash = HashAlgorithm.SHA256
+                    sign = SignatureAlgorithm.ECDSA
+                    keySizeInBits = 256
+                    password = PASSWORD
+                }
+            }
+        }
+    }
+
+    private val tuning = TlsTuning()
+
+    @Test
+    fun sessionCacheIsConfiguredUpFront() {
+        val context = buildServerContext()
+        assertEquals(tuning.sessionCacheSize, context.sessionContext().sessionCacheSize)
+        assertEquals(tuning.sessionTimeoutSeconds, context.sessionContext().sessionTimeout)
+    }
+
+    @Test
+    fun resumedHandshakeIsFasterThanFullHandshake() {
+        val server = buildServerContext()
+
+        // Full: a new client every time, it has no session to offer
+        repeat(WARMUP) { handshake(buildClientContext(), server) }
+        val full = List(ROUNDS) {
+            val (nanos, isResumed) = handshake(buildClientContext(), server)
+            assertFalse(isResumed)
+            nanos
+        }
+
+        // Resumed: the same client reconnects, like a reloaded viewer
+        val client = buildClientContext()
+        handshake(client, server)
+        repeat(WARMUP) { handshake(client, server) }
+        val resumed = List(ROUNDS) {
+            val (nanos, isResumed) = handshake(client, server)
+            assertTrue(isResumed)
+            nanos
+        }
+
+        val fullMedian = full.sorted()[ROUNDS / 2]
+        val resumedMedian = resumed.sorted()[ROUNDS / 2]
+        println("Handshake median full: ${fullMedian / 1000}us resumed: ${resumedMedian / 1000}us")
+        assertTrue(resumedMedian < fullMedian)
+    }
+
+    private fun buildServerContext(): SslContext {
+        val key = keyStore.getKey(ALIAS, PASSWORD.toCharArray()) as PrivateKey
+        val chain = keyStore.getCertificateChain(ALIAS).map { it as X509Certificate }
+        return tuning.buildServerContext(key, chain)
+    }
+
+    private fun buildClientContext(): SSLContext {
+        val trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+        trustManagerFactory.init(keyStore)
+        return SSLContext.getInstance("TLS").apply { init(null, trustManagerFactory.trustManagers, null) }
+    }
+
+    /**
+     * Returns how long the handshake took and whether it resumed an earlier session
+     */
+    private fun handshake(clientContext: SSLContext, serverContext: SslContext): Pair<Long, Boolean> {
+        val client = clientContext.createSSLEngine(HOST, PORT).apply {
+            useClientMode = true
+            enabledProtocols = arrayOf("TLSv1.2")
+        }
+        val server = serverContext.newEngine(ByteBufAllocator.DEFAULT).also { tuning.apply(it) }
+        val sessionsBefore = serverContext.sessionContext().ids.toList().map { it.toList() }
+
+        val startNanos = System.nanoTime()
+        runHandshake(client, server)
+        val nanos = System.nanoTime() - startNanos
+
+        val isResumed = server.session.id.toList() in sessionsBefore
+        return nanos to isResumed
+    }
+
+    private fun runHandshake(client: SSLEngine, server: SSLEngine) {
+        val empty = ByteBuffer.allocate(0)
+        val toServer = ByteBuffer.allocate(client.session.packetBufferSize)
+        val toClient = ByteBuffer.allocate(server.session.packetBufferSize)
+        val clientData = ByteBuffer.allocate(client.session.applicationBufferSize)
+        val serverData = ByteBuffer.allocate(server.session.applicationBufferSize)
+        client.beginHandshake()
+        server.beginHandshake()
+
+        repeat(STEPS_MAX) {
+            client.wrap(empty, toServer)
+            runTasks(client)
+            server.wrap(empty, toClient)
+            runTasks(server)
+
+            toServer.flip()
+            toClient.flip()
+            server.unwrap(toServer, serverData)
+            runTasks(server)
+            client.unwrap(toClient, clientData)
+            runTasks(client)
+            toServer.compact()
+            toClient.compact()
+
+            if (isDone(client) && isDone(server) && toServer.position() == 0 && toClient.position() == 0) return
+        }
+        fail("Handshake did not finish")
+    }
+
+    private fun runTasks(engine: SSLEngine) {
+        while (true) engine.delegatedTask?.run() ?: return
+    }
+
+    private fun isDone(engine: SSLEngine) = engine.handshakeStatus.let {
+        it == HandshakeStatus.NOT_HANDSHAKING || it == HandshakeStatus.FINISHED
+    }
+}
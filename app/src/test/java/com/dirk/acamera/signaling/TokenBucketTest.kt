@@ -0,0 +1,44 @@
+package com.dirk.acamera.signaling
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class TokenBucketTest {
+
+    private var nowNanos = 0L
+    private val clock = { nowNanos }
+
+    @Test
+    fun burstIsAvailableRightAway() {
+        val bucket = TokenBucket(ratePerSecond = 10.0, burst = 3.0, nanoTime = clock)
+        repeat(3) { assertTrue(bucket.tryAcquire()) }
+        assertFalse(bucket.tryAcquire())
+    }
+
+    @Test
+    fun tokensComeBackAtTheRate() {
+        val bucket = TokenBucket(ratePerSecond = 10.0, burst = 1.0, nanoTime = clock)
+        assertTrue(bucket.tryAcquire())
+        nowNanos += 50_000_000
+        assertFalse(bucket.tryAcquire())
+        nowNanos += 50_000_000
+        assertTrue(bucket.tryAcquire())
+    }
+
+    @Test
+    fun tokensDontPileUpBeyondTheBurst() {
+        val bucket = TokenBucket(ratePerSecond = 10.0, burst = 2.0, nanoTime = clock)
+        nowNanos += 60_000_000_000
+        repeat(2) { assertTrue(bucket.tryAcquire()) }
+        assertFalse(bucket.tryAcquire())
+    }
+
+    @Test
+    fun reserveTellsHowLongToWait() {
+        val bucket = TokenBucket(ratePerSecond = 10.0, burst = 1.0, nanoTime = clock)
+        assertEquals(0L, bucket.reserve())
+        assertEquals(100_000_000L, bucket.reserve())
+        // Reservations queue up behind each other
+        assertEquals(200_000_000L, bucket.reserve())
+    }
+}
@@ -0,0 +1,26 @@
+package com.dirk.acamera.utils
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class EventLogTest {
+
+    // Other tests may log at the same time, so look for the entry instead of taking the last one
+    private fun assertLogged(line: String) =
+        assertTrue(buildString { EventLog.writeTo(this) }.lineSequence().any { it.endsWith(line) })
+
+    @Test
+    fun numbersAreFormatted() {
+        EventLog.d("EventLogTest", "startCapture:", 1280, 720, 30)
+        assertLogged("D/EventLogTest: startCapture: 1280 720 30")
+    }
+
+    @Test
+    fun argumentsAreFormatted() {
+        EventLog.d("EventLogTest", "Opening camera", "0")
+        assertLogged("D/EventLogTest: Opening camera 0")
+
+        EventLog.d("EventLogTest", "Switch state:", "IDLE", 2)
+        assertLogged("D/EventLogTest: Switch state: IDLE 2")
+    }
+}
@@ -0,0 +1,36 @@
+package com.dirk.acamera.utils
+
+import org.junit.Assert.*
+import org.junit.Test
+
+class RatioTest {
+
+    @Test
+    fun commonResolutionsAreReduced() {
+        assertEquals(Ratio(16, 9), reduceRatio(1280, 720))
+        assertEquals(Ratio(16, 9), reduceRatio(1920, 1080))
+        assertEquals(Ratio(4, 3), reduceRatio(4000, 3000))
+        assertEquals(Ratio(4, 3), reduceRatio(640, 480))
+        assertEquals(Ratio(11, 9), reduceRatio(352, 288))
+        assertEquals(Ratio(1, 1), reduceRatio(2976, 2976))
+    }
+
+    @Test
+    fun portraitIsReducedToLandscape() {
+        assertEquals(Ratio(16, 9), reduceRatio(720, 1280))
+        assertEquals(Ratio(13, 6), reduceRatio(1080, 2340))
+    }
+
+    @Test
+    fun eightToFiveIsSixteenToTen() {
+        assertEquals(Ratio(16, 10), reduceRatio(1280, 800))
+        assertEquals(Ratio(16, 10), reduceRatio(1200, 1920))
+    }
+
+    @Test
+    fun coprimeResolutionIsKept() {
+        assertEquals(Ratio(1009, 997), reduceRatio(1009, 997))
+        assertEquals(1, greatestCommonDivisor(1009, 997))
+        assertEquals(120, greatestCommonDivisor(1920, 1080))
+    }
+}
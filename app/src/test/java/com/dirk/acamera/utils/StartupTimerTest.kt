@@ -0,0 +1,35 @@
+package com.dirk.acamera.utils
+
+import kotlinx.coroutines.async
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.withTimeout
+import kotlinx.coroutines.yield
+import org.junit.Assert.*
+import org.junit.Test
+
+class StartupTimerTest {
+
+    @Test
+    fun phasesAreAwaitedUntilAllAreDone() = runBlocking {
+        val timer = StartupTimer(setOf("server", "cameras"))
+        val done = async { timer.awaitPhases() }
+
+        timer.measure("server") {}
+        timer.measure("unrelated") {}
+        yield()
+        assertFalse(done.isCompleted)
+
+        timer.measure("cameras") {}
+        withTimeout(1000) { done.await() }
+        assertEquals(listOf("server", "unrelated", "cameras"), timer.getPhases().map { it.name })
+    }
+
+    @Test
+    fun failedPhaseCountsAsDone() = runBlocking {
+        val timer = StartupTimer(setOf("keystore"))
+        assertThrows(IllegalStateException::class.java) {
+            timer.measure("keystore") { throw IllegalStateException() }
+        }
+        withTimeout(1000) { timer.awaitPhases() }
+    }
+}
@@ -0,0 +1,84 @@
+package org.webrtc
+
+import org.junit.Assert.*
+import org.junit.Test
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat.FramerateRange
+import kotlin.random.Random
+
+/**
+ * FlashCaptureFormats has to pick exactly what CameraEnumerationAndroid picked before
+ */
+class FlashCaptureFormatsTest {
+
+    private val sizes = listOf(
+        4032 to 3024, 4000 to 3000, 3840 to 2160, 3264 to 2448, 2592 to 1944, 1920 to 1440, 1920 to 1080,
+        1600 to 1200, 1440 to 1080, 1280 to 960, 1280 to 720, 1024 to 768, 800 to 600, 720 to 480,
+        640 to 480, 640 to 360, 352 to 288, 320 to 240, 176 to 144
+    ).map { (width, height) -> Size(width, height) }
+
+    // Camera2Enumerator.convertFramerates reports ranges in thousandths of frames per second
+    private val framerates = listOf(
+        15 to 15, 20 to 20, 24 to 24, 7 to 30, 10 to 30, 15 to 30, 30 to 30, 30 to 60, 60 to 60
+    ).map { (min, max) -> FramerateRange(min * 1000, max * 1000) }
+
+    @Test
+    fun sizeMatchesCameraEnumeration() {
+        for (width in 0..4200 step 40) {
+            for (height in 0..3200 step 40) {
+                assertSame(
+                    "${width}x$height",
+                    CameraEnumerationAndroid.getClosestSupportedSize(sizes, width, height),
+                    FlashCaptureFormats.getClosestSupportedSize(sizes, width, height)
+                )
+            }
+        }
+    }
+
+    @Test
+    fun framerateRangeMatchesCameraEnumeration() {
+        for (fps in 0..120) {
+            assertSame(
+                "$fps fps",
+                CameraEnumerationAndroid.getClosestSupportedFramerateRange(framerates, fps),
+                FlashCaptureFormats.getClosestSupportedFramerateRange(framerates, fps)
+            )
+        }
+    }
+
+    @Test
+    fun tiesKeepTheFirstCandidate() {
+        val sizes = listOf(Size(1280, 720), Size(1280, 720), Size(1200, 800))
+        assertSame(sizes[0], FlashCaptureFormats.getClosestSupportedSize(sizes, 1240, 760))
+        assertSame(
+            CameraEnumerationAndroid.getClosestSupportedSize(sizes, 1240, 760),
+            FlashCaptureFormats.getClosestSupportedSize(sizes, 1240, 760)
+        )
+
+        val framerates = listOf(FramerateRange(15000, 30000), FramerateRange(15000, 30000))
+        assertSame(framerates[0], FlashCaptureFormats.getClosestSupportedFramerateRange(framerates, 30))
+    }
+
+    @Test
+    fun randomFormatsMatchCameraEnumeration() {
+        val random = Random(42)
+        repeat(1000) {
+            val sizes = List(random.nextInt(1, 20)) { Size(random.nextInt(1, 5000), random.nextInt(1, 4000)) }
+            val width = random.nextInt(0, 5000)
+            val height = random.nextInt(0, 4000)
+            assertSame(
+                CameraEnumerationAndroid.getClosestSupportedSize(sizes, width, height),
+                FlashCaptureFormats.getClosestSupportedSize(sizes, width, height)
+            )
+
+            val framerates = List(random.nextInt(1, 10)) {
+                val min = random.nextInt(0, 60) * 1000
+                FramerateRange(min, min + random.nextInt(0, 60) * 1000)
+            }
+            val fps = random.nextInt(0, 120)
+            assertSame(
+                CameraEnumerationAndroid.getClosestSupportedFramerateRange(framerates, fps),
+                FlashCaptureFormats.getClosestSupportedFramerateRange(framerates, fps)
+            )
+        }
+    }
+}
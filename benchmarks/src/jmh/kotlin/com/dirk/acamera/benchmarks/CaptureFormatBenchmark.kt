@@ -0,0 +1,35 @@
+package com.dirk.acamera.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import org.webrtc.CameraEnumerationAndroid.CaptureFormat.FramerateRange
+import org.webrtc.FlashCaptureFormats
+import org.webrtc.Size
+import java.util.concurrent.TimeUnit
+
+/**
+ * Picking the capture format in FlashCamera2Session.findCaptureFormat,
+ * with the sizes and fps ranges a typical phone camera reports
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class CaptureFormatBenchmark {
+
+    private val sizes = listOf(
+        4032 to 3024, 4000 to 3000, 3840 to 2160, 3264 to 2448, 3200 to 2400, 2976 to 2976, 2592 to 1944,
+        2688 to 1512, 2048 to 1536, 1920 to 1440, 1920 to 1080, 1600 to 1200, 1440 to 1080, 1280 to 960,
+        1280 to 768, 1280 to 720, 1024 to 768, 800 to 600, 800 to 480, 720 to 480, 640 to 480, 640 to 360,
+        352 to 288, 320 to 240, 176 to 144
+    ).map { (width, height) -> Size(width, height) }
+
+    // Camera2Enumerator.convertFramerates reports ranges in thousandths of frames per second
+    private val framerates = listOf(
+        15 to 15, 20 to 20, 24 to 24, 7 to 30, 10 to 30, 15 to 30, 30 to 30, 30 to 60, 60 to 60
+    ).map { (min, max) -> FramerateRange(min * 1000, max * 1000) }
+
+    @Benchmark
+    fun closestSize() = FlashCaptureFormats.getClosestSupportedSize(sizes, 1280, 720)
+
+    @Benchmark
+    fun closestFramerateRange() = FlashCaptureFormats.getClosestSupportedFramerateRange(framerates, 30)
+}
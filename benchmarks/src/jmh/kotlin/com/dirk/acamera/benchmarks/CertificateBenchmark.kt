@@ -0,0 +1,49 @@
+package com.dirk.acamera.benchmarks
+
+import com.dirk.acamera.utils.Counterparty
+import com.dirk.acamera.utils.writeCertificate
+import com.dirk.acamera.utils.writeX509Info
+import io.ktor.utils.io.core.*
+import org.openjdk.jmh.annotations.*
+import java.net.Inet4Address
+import java.security.KeyPair
+import java.security.KeyPairGenerator
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * What generating the server certificate costs on a cold start, split into its parts
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class CertificateBenchmark {
+
+    private val id = Counterparty(country = "DE", organization = "aCamera", commonName = "localhost")
+    private val from = Date()
+    private val to = Date(from.time + TimeUnit.DAYS.toMillis(365 * 25L))
+    private val ipAddresses = listOf(Inet4Address.getByName("127.0.0.1"))
+    private lateinit var keys: KeyPair
+
+    @Setup
+    fun setUp() {
+        keys = generateKeyPair()
+    }
+
+    @Benchmark
+    fun generateKeyPair(): KeyPair = KeyPairGenerator.getInstance("EC").apply { initialize(256) }.genKeyPair()
+
+    @Benchmark
+    fun x509Info() = buildPacket {
+        writeX509Info(ALGORITHM, id, id, keys.public, from, to, listOf("localhost"), ipAddresses)
+    }.readBytes()
+
+    @Benchmark
+    fun signedCertificate() = buildPacket {
+        writeCertificate(id, id, keys, ALGORITHM, from, to, listOf("localhost"), ipAddresses)
+    }.readBytes()
+
+    companion object {
+        private const val ALGORITHM = "SHA256withECDSA"
+    }
+}
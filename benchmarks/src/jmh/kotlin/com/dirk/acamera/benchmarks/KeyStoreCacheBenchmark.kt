@@ -0,0 +1,67 @@
+package com.dirk.acamera.benchmarks
+
+import com.dirk.acamera.utils.KeyStoreCache
+import com.dirk.acamera.utils.buildKeyStore
+import io.ktor.network.tls.extensions.*
+import org.openjdk.jmh.annotations.*
+import java.io.File
+import java.nio.file.Files
+import java.security.KeyStore
+import java.util.concurrent.TimeUnit
+
+/**
+ * What loading the server key store costs on start, with the same certificate as the app's.
+ * Cold: there is no key store file yet, the key pair and certificate are generated and saved.
+ * Warm: the key store saved by an earlier start is read back.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+open class KeyStoreCacheBenchmark {
+
+    private lateinit var directory: File
+    private lateinit var coldFile: File
+    private lateinit var warmFile: File
+
+    @Setup(Level.Trial)
+    fun setUp() {
+        directory = Files.createTempDirectory("keystore").toFile()
+        coldFile = File(directory, "cold.keystore")
+        warmFile = File(directory, "warm.keystore")
+        cache(warmFile).load()
+    }
+
+    @Setup(Level.Invocation)
+    fun deleteColdFile() {
+        coldFile.delete()
+    }
+
+    @TearDown(Level.Trial)
+    fun tearDown() {
+        directory.deleteRecursively()
+    }
+
+    @Benchmark
+    fun cold(): KeyStore = cache(coldFile).load()
+
+    @Benchmark
+    fun warm(): KeyStore = cache(warmFile).load()
+
+    private fun cache(file: File) = KeyStoreCache(file, KEYSTORE_PASS, ALIAS) {
+        buildKeyStore {
+            certificate(ALIAS) {
+                hash = HashAlgorithm.SHA256
+                sign = SignatureAlgorithm.ECDSA
+                keySizeInBits = 256
+                password = CERT_PASS
+                daysValid = 365 * 25L
+            }
+        }
+    }
+
+    companion object {
+        private const val ALIAS = "aCamera"
+        private const val CERT_PASS = "android"
+        private const val KEYSTORE_PASS = "android"
+    }
+}
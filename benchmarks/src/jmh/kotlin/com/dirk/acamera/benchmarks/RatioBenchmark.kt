@@ -0,0 +1,34 @@
+package com.dirk.acamera.benchmarks
+
+import com.dirk.acamera.utils.greatestCommonDivisor
+import com.dirk.acamera.utils.reduceRatio
+import org.openjdk.jmh.annotations.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Reducing camera resolutions to their aspect ratio
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class RatioBenchmark {
+
+    @Param("1280x720", "1920x1080", "4000x3000", "1080x2340", "1009x997")
+    lateinit var resolution: String
+
+    private var width = 0
+    private var height = 0
+
+    @Setup
+    fun setUp() {
+        val (w, h) = resolution.split('x').map { it.toInt() }
+        width = w
+        height = h
+    }
+
+    @Benchmark
+    fun reduce() = reduceRatio(width, height)
+
+    @Benchmark
+    fun divisor() = greatestCommonDivisor(width, height)
+}
@@ -0,0 +1,93 @@
+package com.dirk.acamera.benchmarks
+
+import org.openjdk.jmh.annotations.*
+import org.openjdk.jmh.infra.Blackhole
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Relaying a message to 200 sessions while other messages are relayed at the same time
+ * and a client joins and leaves now and then.
+ * 'synchronizedMap' is how SignalingServer kept its sessions before: a synchronized map,
+ * filtered into a new map for every message. 'snapshot' is the copy-on-write array SignalingRelay uses now.
+ * Delivering is only a call on the session, so what is measured is the lookup around it.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+open class SessionSnapshotBenchmark {
+
+    private class Session(val id: String) {
+        fun deliver(text: String, blackhole: Blackhole) = blackhole.consume(text)
+    }
+
+    private class SessionHandle(val id: String, val session: Session)
+
+    @Param("200")
+    var sessionCount = 0
+
+    private val text = """{"type":"candidate","sdpMid":"0","sdpMLineIndex":0}"""
+    private val joiningId = "joining"
+
+    private val sessionMap: MutableMap<String, Session> = Collections.synchronizedMap(mutableMapOf<String, Session>())
+
+    @Volatile private var sessions = emptyArray<SessionHandle>()
+    private val sessionsLock = Any()
+
+    private lateinit var ids: List<String>
+
+    @Setup
+    fun setUp() {
+        ids = List(sessionCount) { UUID.randomUUID().toString() }
+        ids.forEach { id ->
+            sessionMap[id] = Session(id)
+            sessions += SessionHandle(id, Session(id))
+        }
+    }
+
+    @Benchmark
+    @Group("synchronizedMap")
+    @GroupThreads(4)
+    fun relaySynchronizedMap(blackhole: Blackhole) {
+        val clients = sessionMap.filter { it.key != ids[0] }
+        clients.forEach { it.value.deliver(text, blackhole) }
+    }
+
+    @Benchmark
+    @Group("synchronizedMap")
+    @GroupThreads(1)
+    fun joinAndLeaveSynchronizedMap() {
+        Blackhole.consumeCPU(JOIN_INTERVAL_TOKENS)
+        sessionMap[joiningId] = Session(joiningId)
+        sessionMap.remove(joiningId)
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(4)
+    fun relaySnapshot(blackhole: Blackhole) {
+        val from = ids[0]
+        for (handle in sessions) {
+            if (handle.id == from) continue
+            handle.session.deliver(text, blackhole)
+        }
+    }
+
+    @Benchmark
+    @Group("snapshot")
+    @GroupThreads(1)
+    fun joinAndLeaveSnapshot() {
+        Blackhole.consumeCPU(JOIN_INTERVAL_TOKENS)
+        synchronized(sessionsLock) {
+            sessions += SessionHandle(joiningId, Session(joiningId))
+        }
+        synchronized(sessionsLock) {
+            sessions = sessions.filter { it.id != joiningId }.toTypedArray()
+        }
+    }
+
+    companion object {
+        // Clients join far less often than messages are relayed
+        private const val JOIN_INTERVAL_TOKENS = 10_000L
+    }
+}
@@ -0,0 +1,105 @@
+package com.dirk.acamera.benchmarks
+
+import com.dirk.acamera.signaling.SignalingMessageDecoder
+import com.dirk.acamera.signaling.SignalingRouting
+import com.google.gson.Gson
+import com.google.gson.GsonBuilder
+import com.google.gson.JsonElement
+import com.google.gson.JsonNull
+import com.google.gson.JsonObject
+import org.openjdk.jmh.annotations.*
+import org.webrtc.IceCandidate
+import org.webrtc.SessionDescription
+import java.util.*
+import java.util.concurrent.TimeUnit
+
+/**
+ * Decoding and rewriting of signaling messages.
+ * The legacy variants are what SignalingClient did before SignalingMessageDecoder:
+ * build a Gson tree, rename fields and map it to the WebRTC class by reflection.
+ *
+ * The descriptions are offers as they were captured, see 'src/jmh/resources/sdp':
+ * - 'camera-offer': the app's video-only offer, about 4 KB as JSON
+ * - 'browser-offer': a desktop browser's audio, video and data channel offer, about 10 KB as JSON
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+open class SignalingCodecBenchmark {
+
+    @Param("camera-offer", "browser-offer")
+    lateinit var sdp: String
+
+    private val gson = Gson()
+    private val candidate = """{"from":"3f1c2a4e-8d1b-4c9a-9a51-6a3d2f0e7b11","sdpMid":"0","sdpMLineIndex":0,""" +
+        """"sdp":"candidate:842163049 1 udp 1677729535 192.168.1.20 54321 typ srflx raddr 0.0.0.0 rport 0 generation 0"}"""
+    private lateinit var offer: String
+    private val candidateObject = IceCandidate("0", 0, "candidate:842163049 1 udp 1677729535 192.168.1.20 54321 typ srflx")
+    private val viewerId = "3f1c2a4e-8d1b-4c9a-9a51-6a3d2f0e7b11"
+
+    @Setup
+    fun setUp() {
+        val description = javaClass.getResourceAsStream("/sdp/$sdp.sdp")!!.bufferedReader().use { it.readLines() }
+            .joinToString(separator = "\r\n", postfix = "\r\n")
+        // Like a browser sends it, Gson would escape every '=' otherwise
+        offer = GsonBuilder().disableHtmlEscaping().create().toJson(JsonObject().apply {
+            addProperty("from", viewerId)
+            addProperty(JSON_TYPE, "offer")
+            addProperty(JSON_SDP, description)
+        })
+    }
+
+    @Benchmark
+    fun decodeCandidate() = SignalingMessageDecoder.decode(candidate)
+
+    @Benchmark
+    fun decodeCandidateLegacy() = decodeLegacy(candidate)
+
+    @Benchmark
+    fun decodeOffer() = SignalingMessageDecoder.decode(offer)
+
+    @Benchmark
+    fun decodeOfferLegacy() = decodeLegacy(offer)
+
+    @Benchmark
+    fun tagOfferSender() = SignalingRouting.withSender(offer, viewerId)
+
+    @Benchmark
+    fun encodeCandidate() = SignalingRouting.withTarget(gson.toJson(candidateObject), viewerId)
+
+    @Benchmark
+    fun tagSender() = SignalingRouting.withSender(candidate, viewerId)
+
+    @Benchmark
+    fun readTarget() = SignalingRouting.readTarget(candidate)
+
+    private fun decodeLegacy(data: String): Any? {
+        val jsonElement: JsonElement = gson.fromJson(data, JsonElement::class.java)
+        if (jsonElement is JsonNull) return null
+        val jsonObject = jsonElement as JsonObject
+
+        if (jsonObject.has(JSON_SDP) && jsonObject.has(JSON_SDP_MID) && jsonObject.has(JSON_SDP_MLI)) {
+            return gson.fromJson(data, IceCandidate::class.java)
+        }
+        if (jsonObject.has(JSON_TYPE)) {
+            val jsonObjectType = jsonObject.get(JSON_TYPE).asString.uppercase(Locale.getDefault())
+            jsonObject.remove(JSON_TYPE)
+            jsonObject.addProperty(JSON_TYPE, jsonObjectType)
+            if (jsonObject.has(JSON_SDP)) {
+                val jsonObjectDesc = jsonObject.get(JSON_SDP).asString
+                jsonObject.remove(JSON_SDP)
+                jsonObject.addProperty(JSON_SDP_ANDROID, jsonObjectDesc)
+            }
+            return gson.fromJson(jsonObject, SessionDescription::class.java)
+        }
+        return null
+    }
+
+    companion object {
+        private const val JSON_TYPE = "type"
+        private const val JSON_SDP = "sdp"
+        private const val JSON_SDP_ANDROID = "description"
+        private const val JSON_SDP_MID = "sdpMid"
+        private const val JSON_SDP_MLI = "sdpMLineIndex"
+    }
+}
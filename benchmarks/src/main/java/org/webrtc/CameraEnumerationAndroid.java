@@ -0,0 +1,18 @@
+package org.webrtc;
+
+/**
+ * Stand-in for the WebRTC class, only what the capture format selection needs
+ */
+public class CameraEnumerationAndroid {
+    public static class CaptureFormat {
+        public static class FramerateRange {
+            public int min;
+            public int max;
+
+            public FramerateRange(int min, int max) {
+                this.min = min;
+                this.max = max;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package org.webrtc;
+
+/**
+ * Stand-in for the WebRTC class, with the same fields so Gson maps it the same way
+ */
+public class IceCandidate {
+    public final String sdpMid;
+    public final int sdpMLineIndex;
+    public final String sdp;
+
+    public IceCandidate(String sdpMid, int sdpMLineIndex, String sdp) {
+        this.sdpMid = sdpMid;
+        this.sdpMLineIndex = sdpMLineIndex;
+        this.sdp = sdp;
+    }
+}
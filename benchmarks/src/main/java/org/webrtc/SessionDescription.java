@@ -0,0 +1,20 @@
+package org.webrtc;
+
+/**
+ * Stand-in for the WebRTC class, with the same fields so Gson maps it the same way
+ */
+public class SessionDescription {
+    public enum Type {
+        OFFER,
+        PRANSWER,
+        ANSWER
+    }
+
+    public final Type type;
+    public final String description;
+
+    public SessionDescription(Type type, String description) {
+        this.type = type;
+        this.description = description;
+    }
+}
@@ -0,0 +1,14 @@
+package org.webrtc;
+
+/**
+ * Stand-in for the WebRTC class
+ */
+public class Size {
+    public int width;
+    public int height;
+
+    public Size(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+}
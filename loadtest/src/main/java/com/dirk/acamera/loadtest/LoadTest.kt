@@ -0,0 +1,451 @@
+package com.dirk.acamera.loadtest
+
+import com.dirk.acamera.signaling.RateLimits
+import com.dirk.acamera.signaling.ServerThreading
+import com.dirk.acamera.signaling.SignalingEngine
+import com.dirk.acamera.signaling.SignalingRelay
+import com.dirk.acamera.signaling.SignalingRole
+import com.dirk.acamera.signaling.SignalingServerListener
+import com.dirk.acamera.utils.readProcessContextSwitches
+import com.google.gson.GsonBuilder
+import io.ktor.application.*
+import io.ktor.client.*
+import io.ktor.client.engine.cio.*
+import io.ktor.client.features.websocket.*
+import io.ktor.http.cio.websocket.*
+import io.ktor.routing.*
+import io.ktor.server.engine.*
+import io.ktor.websocket.*
+import kotlinx.coroutines.*
+import java.io.File
+import java.io.IOException
+import java.lang.management.ManagementFactory
+import java.net.Socket
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.system.exitProcess
+
+private const val SOCKET_PATH = "/socket"
+private const val CANDIDATE_PERIOD_MILLIS = 100L
+private const val HOST_CANDIDATES = 3
+private const val CONNECT_TIMEOUT_MILLIS = 30_000L
+private const val IDLE_SETTLE_MILLIS = 1000L
+private const val VIEWER_MESSAGES_PER_SECOND = 1000.0 / CANDIDATE_PERIOD_MILLIS
+private const val GLOBAL_RATE_HEADROOM = 2
+
+/**
+ * Drives the signaling relay with one camera and a growing number of viewers.
+ *
+ * Every step uses its own room. The camera connects in process like the app's, the viewers through the web socket. A viewer joins and trickles a candidate, the camera answers with an offer
+ * and candidates of its own, the viewer answers and keeps trickling candidates until the step ends.
+ * Every message carries the time it was sent, the receiver records how long the relay took.
+ *
+ * With --flood, that many more viewers join every room and send as fast as they can.
+ * Their messages are not measured, the latencies show what is left for the regular viewers.
+ * Every message of a regular viewer has to reach the camera, the run fails if the relay lost any.
+ * With --p99-limit-millis, the run fails if the 99th percentile of any step is above the limit.
+ * With --engine, the server runs on Netty (default) or CIO. Before the first step the footprint of the idle engine
+ * is recorded: startup time, resident memory and threads.
+ * With --threading, its pools are ktor's ("default"), sized from the cores ("auto") or given as
+ * "connection,worker,call". Every step records the context switches of the process.
+ *
+ * The server is plain ws on loopback, TLS is not part of what is measured here.
+ * The relay uses the session rate limit of the app. The session limit is raised so all clients of a step fit in.
+ * Regular viewers stay within the session limit, only what flooders send beyond theirs counts against the global
+ * limit. The run fails if the relay did not drop the excess of flooders that offered more than the global rate.
+ */
+fun main(args: Array<String>) {
+    val options = LoadTestOptions.parse(args)
+    val sessions = options.clients.maxOrNull()!! + options.flood
+    val globalRate = options.clients.maxOrNull()!! * VIEWER_MESSAGES_PER_SECOND * GLOBAL_RATE_HEADROOM
+    val relay = SignalingRelay(
+        LoadTestListener,
+        rateLimits = RateLimits(
+            globalRate = globalRate,
+            globalBurst = globalRate,
+            maxSessions = sessions
+        )
+    )
+    val environment = applicationEngineEnvironment {
+        connector {
+            port = options.port
+        }
+        module {
+            install(WebSockets) {
+                maxFrameSize = SignalingRelay.MESSAGE_SIZE_MAX_DEFAULT.toLong()
+            }
+            routing {
+                webSocketRaw(path = SOCKET_PATH) {
+                    relay.serve(this)
+                }
+            }
+        }
+    }
+    val threadsBefore = ManagementFactory.getThreadMXBean().threadCount
+    val startNanos = System.nanoTime()
+    val server = options.engine.create(environment, options.threading).start(wait = false)
+    val footprint = measureFootprint(options, startNanos, threadsBefore)
+    System.err.println(footprint.summary())
+
+    val client = HttpClient(CIO) {
+        install(WebSockets)
+        engine {
+            maxConnectionsCount = sessions
+            endpoint.maxConnectionsPerRoute = maxConnectionsCount
+        }
+    }
+
+    val steps = try {
+        options.clients.map { viewers ->
+            runBlocking(Dispatchers.Default) { runStep(client, relay, options, viewers) }.also { System.err.println(it.summary()) }
+        }
+    } finally {
+        client.close()
+        server.stop(0, 1000)
+    }
+
+    val json = GsonBuilder().setPrettyPrinting().create().toJson(LoadTestResult(footprint, steps))
+    options.output?.let { File(it).apply { parentFile?.mkdirs() }.writeText(json) } ?: println(json)
+
+    var isFailed = false
+    options.p99LimitMillis?.let { limit ->
+        val failed = steps.filter { it.latencyP99Micros > limit * 1000 }
+        if (failed.isNotEmpty()) {
+            System.err.println("99th percentile above ${limit}ms with ${failed.joinToString { it.viewers.toString() }} viewers")
+            isFailed = true
+        }
+    }
+    // Flooders offering more than the global rate have to be dropped, regular viewers never
+    val lost = steps.filter { it.messagesLost > 0 }
+    if (lost.isNotEmpty()) {
+        System.err.println("Messages of regular viewers were lost with ${lost.joinToString { it.viewers.toString() }} viewers")
+        isFailed = true
+    }
+    val floodRate = options.flood * RateLimits.SESSION_RATE_DEFAULT
+    val unlimited = steps.filter { floodRate > globalRate && it.messagesDropped == 0L }
+    if (unlimited.isNotEmpty()) {
+        System.err.println("Flooders were not limited with ${unlimited.joinToString { it.viewers.toString() }} viewers")
+        isFailed = true
+    }
+    if (isFailed) exitProcess(1)
+}
+
+class LoadTestOptions(
+    val clients: List<Int>,
+    val seconds: Long,
+    val port: Int,
+    val output: String?,
+    val flood: Int,
+    val p99LimitMillis: Double?,
+    val engine: SignalingEngine,
+    val threading: ServerThreading
+) {
+    companion object {
+        fun parse(args: Array<String>): LoadTestOptions {
+            val values = args.toList().chunked(2).filter { it.size == 2 }.associate { (key, value) -> key to value }
+            return LoadTestOptions(
+                clients = values["--clients"]?.split(',')?.map { it.trim().toInt() } ?: listOf(1, 10, 100, 1000),
+                seconds = values["--seconds"]?.toLong() ?: 10L,
+                port = values["--port"]?.toInt() ?: 18080,
+                output = values["--output"],
+                flood = values["--flood"]?.toInt() ?: 0,
+                p99LimitMillis = values["--p99-limit-millis"]?.toDouble(),
+                engine = SignalingEngine.valueOf(values["--engine"]?.uppercase() ?: SignalingEngine.NETTY.name),
+                threading = ServerThreading.parse(values["--threading"] ?: "default")
+            )
+        }
+    }
+}
+
+/**
+ * Outcome of a run, written as JSON
+ */
+class LoadTestResult(val footprint: Footprint, val steps: List<StepResult>)
+
+/**
+ * Cost of the idle engine, resident memory is only known on Linux
+ */
+class Footprint(
+    val engine: SignalingEngine,
+    val threading: String,
+    val startupMillis: Double,
+    val idleRssBytes: Long?,
+    val idleHeapUsedBytes: Long,
+    val idleThreads: Int,
+    val engineThreads: Int
+) {
+    fun summary() = "engine: $engine ($threading) startup: ${"%.1f".format(startupMillis)}ms " +
+        "rss: ${idleRssBytes?.let { "${it / 1024 / 1024}MB" } ?: "n/a"} " +
+        "heap: ${idleHeapUsedBytes / 1024 / 1024}MB threads: $idleThreads (engine: $engineThreads)"
+}
+
+/**
+ * Outcome of one step
+ */
+class StepResult(
+    val viewers: Int,
+    val flooders: Int,
+    val seconds: Double,
+    val messages: Long,
+    val messagesPerSecond: Double,
+    val latencyP50Micros: Double,
+    val latencyP99Micros: Double,
+    val latencyMaxMicros: Double,
+    val heapUsedBytes: Long,
+    val messagesThrottled: Long,
+    val messagesDropped: Long,
+    val messagesLost: Long,
+    val contextSwitchesPerSecond: Double
+) {
+    fun summary() = "viewers: $viewers msgs/s: ${"%.0f".format(messagesPerSecond)} " +
+        "p50: ${"%.0f".format(latencyP50Micros)}us p99: ${"%.0f".format(latencyP99Micros)}us " +
+        "heap: ${heapUsedBytes / 1024 / 1024}MB cs/s: ${"%.0f".format(contextSwitchesPerSecond)}" +
+        if (flooders > 0) " flooders: $flooders throttled: $messagesThrottled dropped: $messagesDropped lost: $messagesLost" else ""
+}
+
+/**
+ * Wait until the engine accepts connections, then let it settle and record what it costs while idle
+ */
+private fun measureFootprint(options: LoadTestOptions, startNanos: Long, threadsBefore: Int): Footprint {
+    runBlocking {
+        withTimeout(CONNECT_TIMEOUT_MILLIS) {
+            while (!isAccepting(options.port)) delay(1)
+        }
+    }
+    val startupMillis = (System.nanoTime() - startNanos) / 1e6
+
+    Thread.sleep(IDLE_SETTLE_MILLIS)
+    System.gc()
+    val threads = ManagementFactory.getThreadMXBean().threadCount
+    return Footprint(
+        engine = options.engine,
+        threading = options.threading.toString(),
+        startupMillis = startupMillis,
+        idleRssBytes = readRssBytes(),
+        idleHeapUsedBytes = Runtime.getRuntime().run { totalMemory() - freeMemory() },
+        idleThreads = threads,
+        engineThreads = threads - threadsBefore
+    )
+}
+
+private fun isAccepting(port: Int) = try {
+    Socket("127.0.0.1", port).close()
+    true
+} catch (error: IOException) {
+    false
+}
+
+/**
+ * Resident set size of this process from /proc, null where there is none
+ */
+private fun readRssBytes() = try {
+    File("/proc/self/status").readLines()
+        .find { it.startsWith("VmRSS:") }
+        ?.split(Regex("\\s+"))?.get(1)?.toLong()?.times(1024)
+} catch (error: IOException) {
+    null
+}
+
+private object LoadTestListener : SignalingServerListener {
+    override fun onServerRunning() {}
+    override fun onServerFailed() {}
+    override fun onConnectionEstablished(id: String, role: SignalingRole) {}
+    override fun onStandbyClaimed(id: String) = false
+    override fun onConnectionAborted(id: String, role: SignalingRole) {}
+}
+
+/**
+ * Latencies in nanoseconds, recorded by a single client
+ */
+private class LatencyRecorder {
+    var values = LongArray(1024)
+        private set
+    @Volatile var size = 0
+        private set
+
+    fun record(sentNanos: Long) {
+        if (size == values.size) values = values.copyOf(size * 2)
+        values[size++] = System.nanoTime() - sentNanos
+    }
+}
+
+private suspend fun runStep(
+    client: HttpClient,
+    relay: SignalingRelay,
+    options: LoadTestOptions,
+    viewers: Int
+): StepResult = coroutineScope {
+    val room = "load-$viewers"
+    val received = AtomicLong()
+    // Messages the regular viewers sent and the ones of them the camera got
+    val viewerSent = AtomicLong()
+    val viewerReceived = AtomicLong()
+    val recorders = mutableListOf<LatencyRecorder>()
+    val connected = CompletableDeferred<Unit>()
+    val connectedViewers = AtomicLong()
+    val running = Job()
+
+    // Camera: offers to every viewer it hears of and answers every candidate
+    // Like the app's camera it runs in process, remote clients can't be cameras
+    val cameraRecorder = LatencyRecorder().also { recorders.add(it) }
+    val cameraConnection = relay.connectLocal(SignalingRole.CAMERA, room)
+    val camera = launch {
+        val known = HashSet<String>()
+        for (text in cameraConnection.incoming) {
+            received.incrementAndGet()
+            readSentNanos(text)?.let {
+                cameraRecorder.record(it)
+                viewerReceived.incrementAndGet()
+            }
+            val from = readField(text, "from") ?: continue
+            if (known.add(from)) {
+                cameraConnection.send(offerMessage(from))
+                repeat(HOST_CANDIDATES) { cameraConnection.send(candidateMessage(from)) }
+            } else if (text.contains("\"candidate:")) {
+                cameraConnection.send(candidateMessage(from))
+            }
+        }
+    }
+
+    // Viewers: trickle candidates until the step ends
+    val viewerJobs = List(viewers) {
+        val recorder = LatencyRecorder().also { recorders.add(it) }
+        launch {
+            client.webSocket(host = "127.0.0.1", port = options.port, path = SOCKET_PATH) {
+                send(joinMessage("viewer", room))
+                send(candidateMessage(null))
+                viewerSent.incrementAndGet()
+                if (connectedViewers.incrementAndGet() == viewers.toLong()) connected.complete(Unit)
+
+                val receiving = launch {
+                    for (frame in incoming) {
+                        val text = (frame as? Frame.Text)?.readText() ?: continue
+                        received.incrementAndGet()
+                        readSentNanos(text)?.let { recorder.record(it) }
+                        if (text.contains("\"OFFER\"")) {
+                            send(answerMessage())
+                            viewerSent.incrementAndGet()
+                        }
+                    }
+                }
+                while (running.isActive) {
+                    delay(CANDIDATE_PERIOD_MILLIS)
+                    send(candidateMessage(null))
+                    viewerSent.incrementAndGet()
+                }
+                receiving.cancel()
+            }
+        }
+    }
+
+    // Flooders: send without pause and ignore what they get
+    val flooderJobs = List(options.flood) {
+        launch {
+            client.webSocket(host = "127.0.0.1", port = options.port, path = SOCKET_PATH) {
+                send(joinMessage("viewer", room))
+                val draining = launch { for (frame in incoming) { } }
+                while (running.isActive) {
+                    send(FLOOD_MESSAGE)
+                    yield()
+                }
+                draining.cancel()
+            }
+        }
+    }
+
+    // Only measure once everybody is connected
+    withTimeout(CONNECT_TIMEOUT_MILLIS) { connected.await() }
+    val startReceived = received.get()
+    val startThrottled = relay.rateLimitStatistics.messagesThrottled
+    val startContextSwitches = readProcessContextSwitches()
+    val startDropped = relay.rateLimitStatistics.messagesDropped
+    val startSize = recorders.map { it.size }
+    val startNanos = System.nanoTime()
+    delay(options.seconds * 1000)
+    val elapsedSeconds = (System.nanoTime() - startNanos) / 1e9
+    val messages = received.get() - startReceived
+    val throttled = relay.rateLimitStatistics.messagesThrottled - startThrottled
+    val dropped = relay.rateLimitStatistics.messagesDropped - startDropped
+    val contextSwitches = readProcessContextSwitches() - startContextSwitches
+
+    // Heap is measured while all clients are still connected
+    System.gc()
+    val heapUsedBytes = Runtime.getRuntime().run { totalMemory() - freeMemory() }
+
+    running.complete()
+    viewerJobs.joinAll()
+    flooderJobs.joinAll()
+    // What the viewers sent last may still be on its way
+    withTimeoutOrNull(CONNECT_TIMEOUT_MILLIS) {
+        while (viewerReceived.get() < viewerSent.get()) delay(1)
+    }
+    cameraConnection.close()
+    camera.cancelAndJoin()
+
+    val latencies = recorders.zip(startSize).flatMap { (recorder, from) ->
+        recorder.values.copyOfRange(from, recorder.size).asList()
+    }.sorted()
+    StepResult(
+        viewers = viewers,
+        flooders = options.flood,
+        seconds = elapsedSeconds,
+        messages = messages,
+        messagesPerSecond = messages / elapsedSeconds,
+        latencyP50Micros = latencies.percentile(0.50) / 1000.0,
+        latencyP99Micros = latencies.percentile(0.99) / 1000.0,
+        latencyMaxMicros = (latencies.lastOrNull() ?: 0L) / 1000.0,
+        heapUsedBytes = heapUsedBytes,
+        messagesThrottled = throttled,
+        messagesDropped = dropped,
+        messagesLost = viewerSent.get() - viewerReceived.get(),
+        contextSwitchesPerSecond = contextSwitches / elapsedSeconds
+    )
+}
+
+private fun List<Long>.percentile(quantile: Double) =
+    if (isEmpty()) 0L else this[((size - 1) * quantile).toInt()]
+
+// Messages look like the ones of the web client and the app, plus the time they were sent
+
+private const val FLOOD_MESSAGE = """{"type":"flood"}"""
+
+private fun joinMessage(role: String, room: String) = """{"type":"join","role":"$role","room":"$room"}"""
+
+private fun offerMessage(to: String) =
+    """{"to":"$to","ts":${System.nanoTime()},"type":"OFFER","description":"$SDP"}"""
+
+private fun answerMessage() =
+    """{"ts":${System.nanoTime()},"type":"answer","sdp":"$SDP"}"""
+
+private fun candidateMessage(to: String?) = (to?.let { """{"to":"$it",""" } ?: "{") +
+    """"ts":${System.nanoTime()},"sdpMid":"0","sdpMLineIndex":0,""" +
+    """"sdp":"candidate:842163049 1 udp 1677729535 192.168.1.20 54321 typ srflx raddr 0.0.0.0 rport 0 generation 0"}"""
+
+private fun readSentNanos(text: String) = readField(text, "ts")?.toLongOrNull()
+
+/**
+ * Value of a top level string or number field, good enough for the messages above
+ */
+private fun readField(text: String, name: String): String? {
+    val key = "\"$name\":"
+    var start = text.indexOf(key)
+    if (start < 0) return null
+    start += key.length
+    if (text[start] == '"') {
+        val end = text.indexOf('"', start + 1)
+        return if (end < 0) null else text.substring(start + 1, end)
+    }
+    var end = start
+    while (end < text.length && text[end].isDigit()) end++
+    return text.substring(start, end)
+}
+
+private const val SDP = "v=0\\r\\no=- 4611731400430051336 2 IN IP4 127.0.0.1\\r\\ns=-\\r\\nt=0 0\\r\\n" +
+    "a=group:BUNDLE 0 1\\r\\na=msid-semantic: WMS acamera_stream\\r\\n" +
+    "m=video 9 UDP/TLS/RTP/SAVPF 96 97 98 99 100 101 127\\r\\nc=IN IP4 0.0.0.0\\r\\n" +
+    "a=rtcp:9 IN IP4 0.0.0.0\\r\\na=ice-ufrag:Qx3p\\r\\na=ice-pwd:hVb7V7lZzV2p0o1Sg3xG0D0W\\r\\n" +
+    "a=fingerprint:sha-256 7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08\\r\\n" +
+    "a=setup:actpass\\r\\na=mid:0\\r\\na=sendonly\\r\\na=rtcp-mux\\r\\na=rtpmap:96 VP8/90000\\r\\n" +
+    "a=rtpmap:97 rtx/90000\\r\\na=fmtp:97 apt=96\\r\\na=rtpmap:98 VP9/90000\\r\\na=rtpmap:100 H264/90000\\r\\n" +
+    "a=fmtp:100 level-asymmetry-allowed=1;packetization-mode=1;profile-level-id=42e01f\\r\\n" +
+    "m=audio 9 UDP/TLS/RTP/SAVPF 111\\r\\nc=IN IP4 0.0.0.0\\r\\na=mid:1\\r\\na=sendonly\\r\\n" +
+    "a=rtpmap:111 opus/48000/2\\r\\na=fmtp:111 minptime=10;useinbandfec=1\\r\\n"